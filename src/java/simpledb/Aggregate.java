@@ -120,9 +120,12 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
 	// some code goes here
     	m_child.open();
-    	while(m_child.hasNext())
+    	//consume the child a batch at a time
+    	TupleBatch buffer = new TupleBatch(m_child.getTupleDesc());
+    	TupleBatch batch;
+    	while((batch = TupleBatch.next(m_child, buffer)) != null)
     	{
-    		m_Aggregator.mergeTupleIntoGroup(m_child.next());
+    		m_Aggregator.mergeBatchIntoGroup(batch);
     	}
     	//open the iterator of the aggregator
     	m_AggregatorIterator = m_Aggregator.iterator();
@@ -170,7 +173,7 @@ public class Aggregate extends Operator {
     //create the TupleDesc with required format
        	Type[] FieldType;
     	String[] FieldName;
-    	if(m_afield == Aggregator.NO_GROUPING)
+    	if(m_gfield == Aggregator.NO_GROUPING)
     	{
     		FieldType = new Type[1];
     		FieldName = new String[1];
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * AggregateHashTable maps the values of a group-by field to dense group
+ * numbers 0, 1, 2, ... in the order the groups are first seen, so an
+ * aggregator can keep its accumulators in primitive arrays indexed by group:
+ * <pre>
+ *     int g = groups.group(key);   // one probe, adds the group if it is new
+ *     sums[g] += value;
+ * </pre>
+ * The index is an open addressing table with linear probing, like the one
+ * of {@link JoinHashTable}, keyed on the int value of an INT_TYPE field or
+ * on the hash of a STRING_TYPE one; each slot stores its key next to its
+ * group, so INT_TYPE keys are found without touching any object.
+ */
+public class AggregateHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean intKey;
+
+    private int[] slotGroups;  // group of each slot, plus one; 0 if empty
+    private int[] slotKeys;    // key, or hash of the key, of each slot
+
+    private int[] intKeys;         // key of each group, if INT_TYPE
+    private String[] stringKeys;   // key of each group, if STRING_TYPE
+    private int size = 0;
+
+    /**
+     * Create an empty table.
+     *
+     * @param keyType the type of the group-by field
+     */
+    public AggregateHashTable(Type keyType) {
+        intKey = keyType == Type.INT_TYPE;
+        slotGroups = new int[64];
+        slotKeys = new int[64];
+        if (intKey)
+            intKeys = new int[16];
+        else
+            stringKeys = new String[16];
+    }
+
+    /** @return the number of groups */
+    public int size() {
+        return size;
+    }
+
+    /** @return the slot index of a key in a table of the specified size */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return the group of an INT_TYPE key, which is added as group size()
+     *         if it is new
+     */
+    public int group(int key) {
+        int mask = slotGroups.length - 1;
+        int i = slot(key, mask);
+        for (; slotGroups[i] != 0; i = (i + 1) & mask)
+            if (slotKeys[i] == key)
+                return slotGroups[i] - 1;
+        if (size == intKeys.length)
+            intKeys = Arrays.copyOf(intKeys, size * 2);
+        intKeys[size] = key;
+        return insert(i, key);
+    }
+
+    /**
+     * @return the group of a STRING_TYPE key, which is added as group
+     *         size() if it is new
+     */
+    public int group(String key) {
+        int h = key.hashCode();
+        int mask = slotGroups.length - 1;
+        int i = slot(h, mask);
+        for (; slotGroups[i] != 0; i = (i + 1) & mask)
+            if (slotKeys[i] == h && stringKeys[slotGroups[i] - 1].equals(key))
+                return slotGroups[i] - 1;
+        if (size == stringKeys.length)
+            stringKeys = Arrays.copyOf(stringKeys, size * 2);
+        stringKeys[size] = key;
+        return insert(i, h);
+    }
+
+    /** @return the group of a key */
+    public int group(Field key) {
+        if (intKey)
+            return group(((IntField) key).getValue());
+        return group(((StringField) key).getValue());
+    }
+
+    /** Fill the empty slot i with a new group. */
+    private int insert(int i, int key) {
+        slotGroups[i] = size + 1;
+        slotKeys[i] = key;
+        if (++size * 2 > slotGroups.length)
+            grow();
+        return size - 1;
+    }
+
+    /** Double the number of slots. */
+    private void grow() {
+        int[] oldGroups = slotGroups, oldKeys = slotKeys;
+        slotGroups = new int[oldGroups.length * 2];
+        slotKeys = new int[oldKeys.length * 2];
+        int mask = slotGroups.length - 1;
+        for (int j = 0; j < oldGroups.length; j++) {
+            if (oldGroups[j] == 0)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (slotGroups[i] != 0)
+                i = (i + 1) & mask;
+            slotGroups[i] = oldGroups[j];
+            slotKeys[i] = oldKeys[j];
+        }
+    }
+
+    /** @return the key of a group as a new Field */
+    public Field getKey(int group) {
+        if (intKey)
+            return new IntField(intKeys[group]);
+        return new StringField(stringKeys[group], Type.STRING_LEN);
+    }
+}
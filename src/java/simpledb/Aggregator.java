@@ -76,6 +76,14 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the active rows of a batch into the aggregate, as if each was
+     * passed to mergeTupleIntoGroup.
+     *
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -0,0 +1,22 @@
+package simpledb;
+
+/**
+ * BatchIterator is implemented by iterators that can produce their output
+ * a batch of rows at a time (see {@link TupleBatch}). Consumers read the
+ * batches of any child with {@link TupleBatch#next}, which falls back to
+ * the tuple interface for iterators that do not implement BatchIterator.
+ * <p>
+ * A consumer should read an iterator either with nextBatch() or with
+ * hasNext()/next(), not both, until the iterator is rewound.
+ */
+public interface BatchIterator {
+
+    /**
+     * Returns the next batch of rows.
+     *
+     * @return the next batch, with at least one active row, or null if
+     *   there are no more rows. The batch is only valid until the next call.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+}
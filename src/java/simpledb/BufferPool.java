@@ -2,10 +2,27 @@ package simpledb;
 
 import java.io.*;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -28,15 +45,90 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Name of the hot page list written next to the catalog for warm restarts. */
+    public static final String HOT_PAGES_FILE = "hotpages";
+
+    /** How often (in milliseconds) the hot page list is rewritten. */
+    public static final long HOT_PAGES_PERIOD = 60 * 1000;
+
+    /** Number of background threads used to prefetch hot pages on startup. */
+    public static final int PREFETCH_THREADS = 4;
+
+    /** Smallest size the buffer pool can be resized to. */
+    public static final int MIN_PAGES = 4;
+
+    /** Maximum number of pages evicted per request while the pool shrinks. */
+    public static final int SHRINK_STEP = 8;
+
+    /** Default fraction of the heap at which the pool shrinks under memory pressure. */
+    public static final double MEMORY_PRESSURE_THRESHOLD = 0.9;
+
+    /** How often (in milliseconds) a pool shrunk by memory pressure tries to grow back. */
+    public static final long REGROW_PERIOD = 10 * 1000;
+
+    /** How often (in milliseconds) the background writer runs. */
+    public static final long WRITER_PERIOD = 100;
+
+    /** Maximum number of dirty pages the background writer flushes per run. */
+    public static final int WRITER_BATCH = 16;
     
-    private HashMap<PageId, Page> bufferpool;
+    /**
+     * A frame of the buffer pool: a cached page, the number of outstanding
+     * pins on it, the transaction that changed it and has not completed yet,
+     * its log state, and its links in the LRU list. A {@link PageHandle}
+     * refers to the frame it pinned, so that its pin is released on that
+     * frame even if the page was discarded and cached again meanwhile.
+     */
+    static class Frame {
+    	Page page;
+    	int pinCount = 0;
+    	/* true once the frame was removed from the page table by discardPage */
+    	boolean discarded = false;
+    	TransactionId writer = null;
+    	/* LSN of the last log record written for the page, or -1 */
+    	long pageLsn = -1;
+    	/* LSN of the first log record written for the page since it was last
+    	   written to disk (its recovery LSN), or -1 if it is clean */
+    	long recLsn = -1;
+    	/* serialized image of the page as of its last log record, valid if
+    	   hasLogged; otherwise that is the before image of the page. The
+    	   array is reused by the following changes to the page */
+    	byte[] logged = null;
+    	boolean hasLogged = false;
+    	Frame prev = null;
+    	Frame next = null;
+
+    	Frame(Page page) {
+    		this.page = page;
+    	}
+
+    	/** @return true if the frame may be evicted, i.e., it is in the LRU list */
+    	boolean evictable() {
+    		return pinCount == 0 && writer == null;
+    	}
+    }
+
+    /* page table, keyed by packed page ids (see HeapPageId.toLong) */
+    private PageTable<Frame> bufferpool;
     /*
-     * LRU queue for pages in buffer pool. 
-     * Map PageId to a sequence number.
-     * Pages with smaller sequence numbers are more recently requested. 
+     * LRU list of the unpinned frames, least recently requested at the head.
+     * Pinned frames, and frames changed by a transaction that has not
+     * completed yet (NO STEAL), are unlinked from the list, so eviction
+     * simply takes the head and never has to skip over pages that are in use.
      */
-    private HashMap<PageId, Integer> LRUqueue;
+    private Frame lruHead = null;
+    private Frame lruTail = null;
     private int numPages;
+    /* size the pool grows back to once memory pressure is over */
+    private int targetPages;
+    private Timer hotPageWriter;
+    private Timer pageWriter;
+    private Timer poolRegrower;
+    private NotificationListener memoryListener;
+    /* pages changed by each transaction that has not completed yet */
+    private final HashMap<TransactionId, HashSet<PageId>> txnPages;
+    private final VersionStore versionStore;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -45,10 +137,140 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         this.numPages = numPages;
-        bufferpool = new HashMap<PageId, Page>();
-        LRUqueue = new HashMap<PageId, Integer>();
+        this.targetPages = numPages;
+        bufferpool = new PageTable<Frame>(numPages);
+        txnPages = new HashMap<TransactionId, HashSet<PageId>>();
+        versionStore = new VersionStore();
+    }
+
+    /**
+     * @return the store of old page versions read by read-only transactions
+     */
+    public VersionStore getVersionStore() {
+    	return versionStore;
     }
     
+    /**
+     * @return the number of pages this buffer pool may currently hold
+     */
+    public synchronized int getNumPages() {
+    	return numPages;
+    }
+
+    /**
+     * Change the number of pages this buffer pool may hold while it is in
+     * use. Growing only raises the limit; frames are allocated as pages are
+     * read in. Shrinking evicts (and flushes) at most SHRINK_STEP pages right
+     * away; the rest are given back a few at a time by later calls to
+     * getPage, so a large shrink never stalls queries. The new size is also
+     * the size the pool grows back to after memory pressure.
+     *
+     * @param newNumPages the new maximum number of pages
+     */
+    public synchronized void resize(int newNumPages) throws DbException {
+    	numPages = Math.max(MIN_PAGES, newNumPages);
+    	targetPages = numPages;
+    	shrinkStep();
+    }
+
+    /**
+     * Evict up to SHRINK_STEP pages while the pool holds more pages than
+     * numPages allows.
+     */
+    private synchronized void shrinkStep() throws DbException {
+    	for (int i = 0; i < SHRINK_STEP && bufferpool.size() > numPages && lruHead != null; i++)
+    		evictPage();
+    }
+
+    /**
+     * Evict every page that is neither pinned nor changed by a running
+     * transaction, flushing it first if it is dirty. Used at startup to drop
+     * the pages read by the statistics scans before the hot pages are
+     * prefetched (see {@link #enableWarmRestart}).
+     */
+    public synchronized void evictUnusedPages() throws DbException {
+    	while (lruHead != null)
+    		evictPage();
+    }
+
+    /**
+     * Memory pressure callback: give half of the frames back, down to
+     * MIN_PAGES. Called by the JVM memory listener installed with
+     * {@link #enableMemoryPressureResize}, and may also be called by an
+     * external agent that balances memory between processes on one box.
+     * The size set by the constructor or {@link #resize} is kept, and
+     * {@link #onMemoryAvailable} grows the pool back to it.
+     */
+    public synchronized void onMemoryPressure() {
+    	numPages = Math.max(MIN_PAGES, numPages / 2);
+    	try {
+    		shrinkStep();
+    	} catch (DbException e) {
+    		e.printStackTrace();
+    	}
+    }
+
+    /**
+     * Memory availability callback: undo one {@link #onMemoryPressure} by
+     * doubling the number of pages the pool may hold, up to the size set by
+     * the constructor or {@link #resize}. Called periodically while the heap
+     * is well below the threshold given to {@link #enableMemoryPressureResize}.
+     */
+    public synchronized void onMemoryAvailable() {
+    	numPages = Math.min(targetPages, numPages * 2);
+    }
+
+    /**
+     * Shrink the buffer pool whenever heap usage crosses the specified
+     * fraction of the maximum heap size, and grow it back once the pressure
+     * is over: every REGROW_PERIOD milliseconds, the pool doubles (up to its
+     * configured size) if heap usage is below half of that fraction. The
+     * gap between the two levels keeps the pool from growing right back into
+     * the pressure it just relieved.
+     *
+     * @param threshold fraction of the heap (e.g., 0.9) at which to shrink
+     */
+    public synchronized void enableMemoryPressureResize(final double threshold) {
+    	if (memoryListener != null)
+    		return;
+    	for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+    		long max = pool.getUsage().getMax();
+    		if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && max > 0)
+    			pool.setUsageThreshold((long) (max * threshold));
+    	}
+    	memoryListener = new NotificationListener() {
+    		public void handleNotification(Notification n, Object handback) {
+    			if (n.getType().equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED))
+    				onMemoryPressure();
+    		}
+    	};
+    	NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+    	emitter.addNotificationListener(memoryListener, null, null);
+    	poolRegrower = new Timer("pool-regrower", true);
+    	poolRegrower.schedule(new TimerTask() {
+    		public void run() {
+    			MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    			if (heap.getMax() > 0 && heap.getUsed() < heap.getMax() * threshold / 2)
+    				onMemoryAvailable();
+    		}
+    	}, REGROW_PERIOD, REGROW_PERIOD);
+    }
+
+    /** Stop resizing the buffer pool on memory pressure. */
+    public synchronized void disableMemoryPressureResize() {
+    	if (memoryListener == null)
+    		return;
+    	poolRegrower.cancel();
+    	poolRegrower = null;
+    	try {
+    		NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+    		emitter.removeNotificationListener(memoryListener);
+    	} catch (ListenerNotFoundException e) {
+    		e.printStackTrace();
+    	}
+    	memoryListener = null;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -68,6 +290,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Read-only transactions (see {@link Transaction#Transaction(boolean)})
+     * take no locks; they get the version of the page that was committed
+     * when their snapshot was taken.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -76,26 +302,169 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	if(bufferpool.containsKey(pid)) {
-    		requestPage(pid);
-    		return bufferpool.get(pid);
+    	// the map is shared with the background prefetch threads
+    	synchronized (this) {
+    		return visiblePage(tid, fetchPage(pid.getTableId(), pid.pageNumber(), pid));
+    	}
+    }
+
+    /**
+     * Retrieve the specified page of a table with the associated permissions.
+     * Same as {@link #getPage(TransactionId, PageId, Permissions)}, but does
+     * not allocate a PageId when the page is already cached.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param tableId the table the page belongs to
+     * @param pgNo the page number in that table
+     * @param perm the requested permissions on the page
+     */
+    public Page getPage(TransactionId tid, int tableId, int pgNo, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	synchronized (this) {
+    		return visiblePage(tid, fetchPage(tableId, pgNo, null));
+    	}
+    }
+
+    /**
+     * Look up a page in the page table, reading it in if it is not cached.
+     *
+     * @param tableId the table the page belongs to
+     * @param pgNo the page number in that table
+     * @param pid the ID of the page, or null to create one if the page has
+     *   to be read in
+     * @return the frame holding the page
+     */
+    private synchronized Frame fetchPage(int tableId, int pgNo, PageId pid)
+        throws DbException {
+    	// after a resize, give back a few frames on every request
+    	shrinkStep();
+    	Frame frame = bufferpool.get(HeapPageId.pack(tableId, pgNo));
+    	if(frame != null) {
+    		requestPage(frame);
     	}
     	else
     	{
-    		Integer TableId = pid.getTableId();
-    	    DbFile file = Database.getCatalog().getDatabaseFile(TableId);
+    		if (pid == null)
+    			pid = new HeapPageId(tableId, pgNo);
+    	    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
     	    Page PageRead = file.readPage(pid);
-    	    if(bufferpool.size() == numPages)
-    	    {
-    	    	//eviction
-    	    	evictPage();
-    	    }
-    	    requestPage(pid);
-    	    bufferpool.put(pid, PageRead);
-    	    return PageRead;
+    	    frame = addPage(PageRead);
+    	}
+    	return frame;
+    }
+
+    /**
+     * @return the version of the page in a frame that the specified
+     *   transaction should see
+     */
+    private Page visiblePage(TransactionId tid, Frame frame) {
+    	if (versionStore.isSnapshotReader(tid))
+    		return versionStore.readVersion(tid, frame.page, frame.writer != null);
+    	return frame.page;
+    }
+
+    /**
+     * Retrieve the specified page and pin it in the buffer pool. A pinned
+     * page is never evicted, so the caller may keep using the page (and the
+     * tuples on it) without copying them until it calls
+     * {@link PageHandle#unpin}. Operators should unpin their pages when they
+     * are closed.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return a handle on the pinned page
+     * @throws DbException if every frame of the buffer pool is pinned
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	synchronized (this) {
+    		return pin(tid, fetchPage(pid.getTableId(), pid.pageNumber(), pid));
     	}
     }
 
+    /**
+     * Retrieve the specified page of a table and pin it in the buffer pool.
+     * Same as {@link #pinPage(TransactionId, PageId, Permissions)}, but does
+     * not allocate a PageId when the page is already cached.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param tableId the table the page belongs to
+     * @param pgNo the page number in that table
+     * @param perm the requested permissions on the page
+     * @return a handle on the pinned page
+     */
+    public PageHandle pinPage(TransactionId tid, int tableId, int pgNo, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	synchronized (this) {
+    		return pin(tid, fetchPage(tableId, pgNo, null));
+    	}
+    }
+
+    private PageHandle pin(TransactionId tid, Frame frame) {
+    	if (frame.evictable())
+    		unlink(frame);
+    	frame.pinCount++;
+    	return new PageHandle(this, frame, visiblePage(tid, frame));
+    }
+
+    /**
+     * Release one pin on a frame. Once the last pin is released the page
+     * becomes the most recently used candidate for eviction, unless it was
+     * discarded (e.g., by rollback) while pinned, in which case the frame
+     * is simply dropped. Called by {@link PageHandle#unpin}.
+     *
+     * @param frame the frame that was pinned
+     */
+    synchronized void unpinPage(Frame frame) {
+    	if (frame.pinCount == 0)
+    		return;
+    	if (--frame.pinCount == 0 && frame.writer == null && !frame.discarded)
+    		append(frame);
+    }
+
+    /** @return the page table key of the specified page */
+    private static long key(PageId pid) {
+    	return HeapPageId.pack(pid.getTableId(), pid.pageNumber());
+    }
+
+    /**
+     * Add a page that is not cached yet, evicting a page first if the
+     * buffer pool is full.
+     *
+     * @param p the page to add
+     * @return the frame holding the page
+     */
+    private synchronized Frame addPage(Page p) throws DbException {
+    	if(bufferpool.size() >= numPages)
+    	{
+    		//eviction
+    		evictPage();
+    	}
+    	Frame frame = new Frame(p);
+    	bufferpool.put(key(p.getId()), frame);
+    	append(frame);
+    	return frame;
+    }
+
+    /**
+     * Record that the specified transaction changed the page in a frame.
+     * The frame stays in the buffer pool until the transaction completes.
+     */
+    private synchronized void markWritten(Frame frame, TransactionId tid) {
+    	if (frame.writer == null) {
+    		if (frame.pinCount == 0)
+    			unlink(frame);
+    		frame.writer = tid;
+    	}
+    	HashSet<PageId> pages = txnPages.get(tid);
+    	if (pages == null) {
+    		pages = new HashSet<PageId>();
+    		txnPages.put(tid, pages);
+    	}
+    	pages.add(frame.page.getId());
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -118,6 +487,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -138,6 +508,35 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	synchronized (this) {
+    		HashSet<PageId> pages = txnPages.remove(tid);
+    		if (pages != null) {
+    			ArrayList<Page> beforeImages = new ArrayList<Page>();
+    			for (PageId pid : pages) {
+    				Frame frame = bufferpool.get(key(pid));
+    				if (frame == null)
+    					continue;
+    				if (commit) {
+    					if (frame.page.isDirty() != null)
+    						flushPage(pid);
+    					// keep the previously committed image for older snapshots
+    					beforeImages.add(frame.page.getBeforeImage());
+    					frame.page.setBeforeImage();
+    				} else {
+    					// the page may have been written out by flushAllPages
+    					frame.page = frame.page.getBeforeImage();
+    					writePage(frame.page);
+    				}
+    				frame.writer = null;
+    				frame.hasLogged = false;
+    				if (frame.pinCount == 0)
+    					append(frame);
+    			}
+    			if (commit)
+    				versionStore.commit(beforeImages);
+    		}
+    	}
+    	versionStore.endSnapshot(tid);
     }
 
     /**
@@ -158,6 +557,8 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+    	if (versionStore.isSnapshotReader(tid))
+    		throw new DbException("insertTuple(): transaction is read-only.");
     	
     	try {
         	HeapFile hp = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
@@ -167,12 +568,18 @@ public class BufferPool {
         	// update corresponding pages in bufferpool
         	for (Page p : pages) {
         		p.markDirty(true, tid);
-        		bufferpool.put(p.getId(), p);
+        		synchronized (this) {
+        			Frame frame = bufferpool.get(key(p.getId()));
+        			if (frame != null)
+        				frame.page = p;
+        			else
+        				frame = addPage(p);
+        			markWritten(frame, tid);
+        			logChange(frame, tid);
+        		}
         	}
         } catch (DbException e) {
         	e.printStackTrace();
-        } catch (IOException e ) {
-        	e.printStackTrace();
         } catch (TransactionAbortedException e) {
         	e.printStackTrace();
         }
@@ -194,6 +601,8 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+    	if (versionStore.isSnapshotReader(tid))
+    		throw new DbException("deleteTuple(): transaction is read-only.");
     	
     	try {
     		int tableId = t.getRecordId().getPageId().getTableId();
@@ -203,6 +612,13 @@ public class BufferPool {
         	// mark affected pages dirty
         	for (Page p : pages) {
         		p.markDirty(true, tid);
+        		synchronized (this) {
+        			Frame frame = bufferpool.get(key(p.getId()));
+        			if (frame != null) {
+        				markWritten(frame, tid);
+        				logChange(frame, tid);
+        			}
+        		}
         	}
         } catch (DbException e) {
         	e.printStackTrace();
@@ -220,8 +636,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
 
-    	for (PageId pid : bufferpool.keySet())
-    		flushPage(pid);
+    	flushFrames(bufferpool.values());
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -232,6 +647,12 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // only necessary for lab5
+    	Frame frame = bufferpool.remove(key(pid));
+    	if (frame == null)
+    		return;
+    	if (frame.evictable())
+    		unlink(frame);
+    	frame.discarded = true;
     }
 
     /**
@@ -242,15 +663,136 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	
+    	Frame frame = bufferpool.get(key(pid));
+    	// write ahead: the log must be on disk up to the page's last record
+    	if (frame.pageLsn >= 0)
+    		Database.getLogFile().force(frame.pageLsn);
+    	// write page to file and mark it clean
+    	writePage(frame.page);
+    	frame.page.markDirty(false, null);
+    	frame.recLsn = -1;
+    }
+
+    /**
+     * Flush a set of pages, forcing the log only once for all of them.
+     * @param frames the frames of the pages to flush
+     */
+    private synchronized void flushFrames(Collection<Frame> frames) throws IOException {
+    	long maxLsn = -1;
+    	for (Frame frame : frames)
+    		maxLsn = Math.max(maxLsn, frame.pageLsn);
+    	if (maxLsn >= 0)
+    		Database.getLogFile().force(maxLsn);
+    	for (Frame frame : frames) {
+    		writePage(frame.page);
+    		frame.page.markDirty(false, null);
+    		frame.recLsn = -1;
+    	}
+    }
+
+    /**
+     * Log the change a transaction just made to the page in a frame, and
+     * remember the LSN of the record in the frame.
+     */
+    private void logChange(Frame frame, TransactionId tid) throws IOException {
+    	Page p = frame.page;
+    	byte[] after = p.getPageData();
+    	byte[] before;
+    	if (frame.hasLogged)
+    		before = frame.logged;
+    	else if (p instanceof HeapPage)
+    		before = ((HeapPage) p).getBeforeImageData();
+    	else
+    		before = p.getBeforeImage().getPageData();
+    	frame.pageLsn = Database.getLogFile().logWrite(tid, p, before, after);
+    	if (frame.recLsn < 0)
+    		frame.recLsn = frame.pageLsn;
+    	if (frame.logged == null || frame.logged.length != after.length)
+    		frame.logged = new byte[after.length];
+    	System.arraycopy(after, 0, frame.logged, 0, after.length);
+    	frame.hasLogged = true;
+    }
+
+    /**
+     * @return the dirty page table: the recovery LSN of every page that was
+     *   changed in memory since it was last written to disk
+     * @see LogFile#logCheckpoint
+     */
+    public synchronized HashMap<PageId, Long> getDirtyPages() {
+    	HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+    	for (Frame frame : bufferpool.values())
+    		if (frame.recLsn >= 0)
+    			dirty.put(frame.page.getId(), frame.recLsn);
+    	return dirty;
+    }
+
+    /**
+     * Write up to n dirty pages to disk, those that have been dirty the
+     * longest (smallest recovery LSN) first, so that the redo point of the
+     * next checkpoint moves forward. Only pages changed by completed
+     * transactions are written; pages of a running transaction are never
+     * written before it commits.
+     *
+     * @param n the maximum number of pages to write
+     * @return the number of pages written
+     */
+    public synchronized int writeDirtyPages(int n) throws IOException {
+    	PriorityQueue<Frame> oldest = new PriorityQueue<Frame>(n + 1, new Comparator<Frame>() {
+    		public int compare(Frame f1, Frame f2) {
+    			// newest first, so that the head is the one to drop
+    			return Long.compare(f2.recLsn, f1.recLsn);
+    		}
+    	});
+    	for (Frame frame : bufferpool.values()) {
+    		// pages of running transactions stay in memory (NO STEAL)
+    		if (frame.recLsn < 0 || frame.writer != null)
+    			continue;
+    		oldest.add(frame);
+    		if (oldest.size() > n)
+    			oldest.poll();
+    	}
+    	flushFrames(oldest);
+    	return oldest.size();
+    }
+
+    /**
+     * Start the background writer, which writes up to WRITER_BATCH dirty
+     * pages every WRITER_PERIOD milliseconds so that checkpoints never have
+     * to flush the buffer pool.
+     */
+    public synchronized void enableBackgroundWriter() {
+    	if (pageWriter != null)
+    		return;
+    	pageWriter = new Timer("page-writer", true);
+    	pageWriter.schedule(new TimerTask() {
+    		public void run() {
+    			try {
+    				writeDirtyPages(WRITER_BATCH);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}, WRITER_PERIOD, WRITER_PERIOD);
+    }
+
+    /** Stop the background writer. */
+    public synchronized void disableBackgroundWriter() {
+    	if (pageWriter != null) {
+    		pageWriter.cancel();
+    		pageWriter = null;
+    	}
+    }
+
+    /**
+     * Write a page to the file it belongs to.
+     * @param p the page to write
+     */
+    private void writePage(Page p) {
     	try {
     		// get the HeapFile the page resides in
-    		int tableId = ((HeapPageId) pid).getTableId();
+    		int tableId = p.getId().getTableId();
     		HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-    		Page p = bufferpool.get(pid);
-    		
-    		// write page to file and mark it clean
     		hf.writePage(p);
-    		p.markDirty(false, null);
     	} catch (IOException e) {
     		e.printStackTrace();
     	}
@@ -261,6 +803,16 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	HashSet<PageId> pages = txnPages.get(tid);
+    	if (pages == null)
+    		return;
+    	ArrayList<Frame> frames = new ArrayList<Frame>(pages.size());
+    	for (PageId pid : pages) {
+    		Frame frame = bufferpool.get(key(pid));
+    		if (frame != null)
+    			frames.add(frame);
+    	}
+    	flushFrames(frames);
     }
 
     /**
@@ -271,16 +823,11 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	
-    	int seqnum = -1;
-    	PageId pidToEvict = null;
-    	// find the page with the highest sequence number to evict
-    	for (PageId pid : LRUqueue.keySet()) {
-    		int num = LRUqueue.get(pid);
-    		if (num > seqnum) {
-    			num = seqnum;
-    			pidToEvict = pid;
-    		}
-    	}
+    	// the least recently used unpinned frame is at the head of the list
+    	Frame victim = lruHead;
+    	if (victim == null)
+    		throw new DbException("evictPage(): all pages are pinned or dirty.");
+    	PageId pidToEvict = victim.page.getId();
     	// flush the page to disk 
     	// remove it from bufferpool
     	try {
@@ -288,20 +835,238 @@ public class BufferPool {
     	} catch (IOException e) {
     		e.printStackTrace();
     	}
-    	bufferpool.remove(pidToEvict);
-    	LRUqueue.remove(pidToEvict);
+    	unlink(victim);
+    	bufferpool.remove(key(pidToEvict));
+    }
+
+    /**
+     * Move the requested frame to the back (most recently used end) of the
+     * LRU list. Pinned frames and frames changed by a running transaction
+     * are not in the list and stay where they are.
+     * @param frame The frame of the requested page.
+     */
+    private void requestPage(Frame frame) {
+    	if (frame.evictable()) {
+    		unlink(frame);
+    		append(frame);
+    	}
+    }
+
+    /** Append a frame at the most recently used end of the LRU list. */
+    private void append(Frame frame) {
+    	frame.prev = lruTail;
+    	frame.next = null;
+    	if (lruTail != null)
+    		lruTail.next = frame;
+    	else
+    		lruHead = frame;
+    	lruTail = frame;
+    }
+
+    /** Remove a frame from the LRU list. */
+    private void unlink(Frame frame) {
+    	if (frame.prev != null)
+    		frame.prev.next = frame.next;
+    	else if (lruHead == frame)
+    		lruHead = frame.next;
+    	if (frame.next != null)
+    		frame.next.prev = frame.prev;
+    	else if (lruTail == frame)
+    		lruTail = frame.prev;
+    	frame.prev = null;
+    	frame.next = null;
     }
 
     /**
-     * Increment the sequence number of every page in bufferpool.
-     * Put the newly requested page to the back of the queue.
-     * @param pid The PageID of the requested page.
+     * Return the ids of the pages currently cached, hottest (most recently
+     * requested) first.
+     */
+    public synchronized ArrayList<PageId> getHotPages() {
+    	ArrayList<PageId> hot = new ArrayList<PageId>();
+    	// pinned and uncommitted pages are in use right now
+    	for (Frame frame : bufferpool.values())
+    		if (!frame.evictable())
+    			hot.add(frame.page.getId());
+    	for (Frame frame = lruTail; frame != null; frame = frame.prev)
+    		hot.add(frame.page.getId());
+    	return hot;
+    }
+
+    /**
+     * Write the list of hot pages to the specified file. Each entry is a
+     * (table id, page number) pair; entries are ordered by hotness. The list
+     * is written to a temporary file first so that a crash while saving never
+     * leaves a truncated list behind.
+     *
+     * @param f the file to write the hot page list to
+     */
+    public void saveHotPages(File f) throws IOException {
+    	ArrayList<PageId> hot = getHotPages();
+    	File tmp = new File(f.getPath() + ".tmp");
+    	DataOutputStream dos = new DataOutputStream(
+    			new BufferedOutputStream(new FileOutputStream(tmp)));
+    	try {
+    		dos.writeInt(hot.size());
+    		for (PageId pid : hot) {
+    			dos.writeInt(pid.getTableId());
+    			dos.writeInt(pid.pageNumber());
+    		}
+    	} finally {
+    		dos.close();
+    	}
+    	f.delete();
+    	if (!tmp.renameTo(f))
+    		throw new IOException("saveHotPages: cannot rename " + tmp + " to " + f);
+    }
+
+    /**
+     * Read a hot page list written by {@link #saveHotPages}. Pages of tables
+     * that are no longer in the catalog, or that lie beyond the end of their
+     * file, are dropped. At most numPages entries are returned.
+     *
+     * @param f the file holding the hot page list
+     * @return the hot pages, hottest first
+     */
+    public ArrayList<PageId> loadHotPages(File f) throws IOException {
+    	ArrayList<PageId> hot = new ArrayList<PageId>();
+    	DataInputStream dis = new DataInputStream(
+    			new BufferedInputStream(new FileInputStream(f)));
+    	try {
+    		int n = dis.readInt();
+    		for (int i = 0; i < n && hot.size() < numPages; i++) {
+    			int tableId = dis.readInt();
+    			int pgNo = dis.readInt();
+    			DbFile file;
+    			try {
+    				file = Database.getCatalog().getDatabaseFile(tableId);
+    			} catch (java.util.NoSuchElementException e) {
+    				continue;
+    			}
+    			if (file instanceof HeapFile && pgNo >= ((HeapFile) file).numPages())
+    				continue;
+    			hot.add(new HeapPageId(tableId, pgNo));
+    		}
+    	} finally {
+    		dis.close();
+    	}
+    	return hot;
+    }
+
+    /**
+     * Prefetch the pages listed in a hot page file using PREFETCH_THREADS
+     * background threads. Pages are read in file order (table id, then page
+     * number), and each thread reads a contiguous range so that disk access
+     * stays sequential. Pages are only installed in free frames; prefetching
+     * never evicts a page that a query has already brought in.
+     *
+     * @param f the file holding the hot page list
+     * @return the threads doing the prefetch, already started
+     */
+    public Thread[] prefetchHotPages(File f) throws IOException {
+    	final ArrayList<PageId> hot = loadHotPages(f);
+    	final ArrayList<PageId> sorted = new ArrayList<PageId>(hot);
+    	Collections.sort(sorted, new Comparator<PageId>() {
+    		public int compare(PageId p1, PageId p2) {
+    			if (p1.getTableId() != p2.getTableId())
+    				return p1.getTableId() < p2.getTableId() ? -1 : 1;
+    			return p1.pageNumber() - p2.pageNumber();
+    		}
+    	});
+
+    	int nThreads = Math.max(1, Math.min(PREFETCH_THREADS, sorted.size()));
+    	int chunk = (sorted.size() + nThreads - 1) / nThreads;
+    	Thread[] threads = new Thread[nThreads];
+    	for (int t = 0; t < nThreads; t++) {
+    		final int from = Math.min(sorted.size(), t * chunk);
+    		final int to = Math.min(sorted.size(), from + chunk);
+    		threads[t] = new Thread("prefetch-" + t) {
+    			public void run() {
+    				for (int i = from; i < to; i++) {
+    					PageId pid = sorted.get(i);
+    					if (!prefetchPage(pid))
+    						return;
+    				}
+    			}
+    		};
+    		threads[t].setDaemon(true);
+    		threads[t].start();
+    	}
+    	return threads;
+    }
+
+    /**
+     * Read the specified page from disk and install it if it is not cached
+     * yet and there is a free frame for it. Prefetched pages go to the least
+     * recently used end of the LRU list until a query requests them.
+     *
+     * @param pid the page to prefetch
+     * @return false if the buffer pool is full and prefetching should stop
+     */
+    private boolean prefetchPage(PageId pid) {
+    	synchronized (this) {
+    		if (bufferpool.get(key(pid)) != null)
+    			return true;
+    		if (bufferpool.size() >= numPages)
+    			return false;
+    	}
+    	// do the I/O without holding the buffer pool lock
+    	Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    	if (p == null)
+    		return true;
+    	synchronized (this) {
+    		if (bufferpool.get(key(pid)) != null)
+    			return true;
+    		if (bufferpool.size() >= numPages)
+    			return false;
+    		Frame frame = new Frame(p);
+    		bufferpool.put(key(pid), frame);
+    		frame.next = lruHead;
+    		if (lruHead != null)
+    			lruHead.prev = frame;
+    		else
+    			lruTail = frame;
+    		lruHead = frame;
+    	}
+    	return true;
+    }
+
+    /**
+     * Turn on warm restarts: prefetch the pages listed in the hot page file
+     * (if one exists) and rewrite the list every HOT_PAGES_PERIOD
+     * milliseconds from a background thread. Must be called after the
+     * catalog has been loaded.
+     *
+     * @param f the file holding the hot page list
+     */
+    public synchronized void enableWarmRestart(final File f) throws IOException {
+    	if (f.exists())
+    		prefetchHotPages(f);
+    	if (hotPageWriter != null)
+    		hotPageWriter.cancel();
+    	hotPageWriter = new Timer("hot-page-writer", true);
+    	hotPageWriter.schedule(new TimerTask() {
+    		public void run() {
+    			try {
+    				saveHotPages(f);
+    			} catch (IOException e) {
+    				e.printStackTrace();
+    			}
+    		}
+    	}, HOT_PAGES_PERIOD, HOT_PAGES_PERIOD);
+    }
+
+    /**
+     * Stop rewriting the hot page list, saving it one last time.
+     *
+     * @param f the file holding the hot page list
      */
-    private void requestPage(PageId pid) {
-    	for (PageId p : LRUqueue.keySet()) {
-    		int seqnum = LRUqueue.get(p) + 1;
-    		LRUqueue.put(p, seqnum);
+    public void disableWarmRestart(File f) throws IOException {
+    	synchronized (this) {
+    		if (hotPageWriter == null)
+    			return;
+    		hotPageWriter.cancel();
+    		hotPageWriter = null;
     	}
-    	LRUqueue.put(pid, 0);
+    	saveHotPages(f);
     }
-}
\ No newline at end of file
+}
@@ -79,18 +79,18 @@ public class Delete extends Operator {
     		while(m_child.hasNext())
     		{
     			Tuple delete = m_child.next();    //if child iterator has next tuple, delete it
-    			try{
-    				Database.getBufferPool().deleteTuple(m_t, delete);
-    			}catch(IOException e)
-    			{
-    				e.printStackTrace();
-    			}
+    			Database.getBufferPool().deleteTuple(m_t, delete);
     			num++;     //increment the number of deleted records by 1
     		}
     		Field count = new IntField(num);
     		m_tuple.setField(0, count);     //set value into the tuple
        	}
     	}
+    	catch(IOException e)
+    	{
+    		// the change could not be logged or written: abort the transaction
+    		throw new DbException("delete failed: " + e.getMessage());
+    	}
     	catch(DbException e)
     	{
     		e.printStackTrace();
@@ -12,8 +12,9 @@ public class Filter extends Operator {
     private Predicate p;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private Iterator<Tuple> it;
+    private transient TupleBatch buffer;
+    private transient KeyFilter keyFilter;
+    private transient int keyField;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -33,6 +34,19 @@ public class Filter extends Operator {
         return p;
     }
 
+    /**
+     * Also drop the tuples whose value of the specified field is certainly
+     * not in a KeyFilter.
+     *
+     * @param field the field to test
+     * @param f the filter, or null to remove it
+     * @see KeyFilter#pushDown
+     */
+    public void setKeyFilter(int field, KeyFilter f) {
+    	keyField = field;
+    	keyFilter = f;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -40,24 +54,36 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
     	child.open();
-    	// load and filter all the tuples
-    	while (child.hasNext()) {
-    		Tuple t = ((Tuple) child.next());
-    		if (p.filter(t))
-    			childTups.add(t);
-    	}
-    	it = childTups.iterator();
+    	if (buffer == null)
+    		buffer = new TupleBatch(td);
         super.open();
     }
 
     public void close() {
     	child.close();
         super.close();
-        it = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-    	it = childTups.iterator();
+    	child.rewind();
+    	discardBatch();
+    }
+
+    /**
+     * Returns the next batch of the child with its selection narrowed to
+     * the rows that pass the predicate (and the KeyFilter, if any),
+     * skipping batches with no such rows.
+     *
+     * @see Predicate#filter(TupleBatch)
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    	TupleBatch batch;
+    	while ((batch = TupleBatch.next(child, buffer)) != null) {
+    		if (p.filter(batch) > 0
+    				&& (keyFilter == null || keyFilter.filter(batch, keyField) > 0))
+    			return batch;
+    	}
+    	return null;
     }
 
     /**
@@ -65,16 +91,22 @@ public class Filter extends Operator {
      * child operator, applying the predicate to them and returning those that
      * pass the predicate (i.e. for which the Predicate.filter() returns true.)
      * 
+     * The tuples of the child are returned as they are, without going
+     * through a batch.
+     * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
      * @see Predicate#filter
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+    	while (child.hasNext()) {
+    		Tuple t = child.next();
+    		if (p.filter(t)
+    				&& (keyFilter == null || keyFilter.mightContain(t.getField(keyField))))
+    			return t;
+    	}
+    	return null;
     }
 
     @Override
@@ -11,8 +11,6 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
-    transient private Tuple t1 = null;
-    transient private Tuple t2 = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -26,9 +24,30 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor for a join that holds at most mapSize tuples of child1 in
+     * memory, e.g. one of several joins sharing the memory budget of one.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param mapSize
+     *            The maximum number of child1 tuples held in memory
+     * @throws IllegalArgumentException if mapSize is not positive
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int mapSize) {
+        if (mapSize <= 0)
+            throw new IllegalArgumentException("HashEquiJoin(): mapSize must be positive.");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.mapSize = mapSize;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -50,25 +69,188 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    /** Default maximum number of child1 tuples held in memory. */
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    /** Number of partitions child1 is split into when it is spilled. */
+    public final static int NUM_PARTITIONS = 32;
+
+    /**
+     * Number of times a spilled partition may be partitioned again. A
+     * partition at this depth is kept in memory whatever its size, e.g. if
+     * all its tuples have the same join value.
+     */
+    public final static int MAX_DEPTH = 4;
+
+    private int depth = 0;
+    private int mapSize;
+
+    // hash table of each partition of child1, or null if it was spilled
+    transient private JoinHashTable[] tables;
+    transient private int inMemory = 0;         // tuples in all tables
+    transient private SpillFile[] buildSpill, probeSpill;
+    transient private boolean probing = false;  // reading child2
+    transient private int nextSpilled = 0;      // next spilled partition to join
+    transient private HashEquiJoin spilled = null;  // join of a spilled partition
+    transient private KeyFilter keyFilter = null;  // pushed down to child2
+
+    transient private TupleBatch buildBuffer, probeBuffer, out;
+    transient private TupleBatch probe = null;  // batch of child2 being probed
+    transient private int probeK = 0;           // next active row of probe
+    transient private int probeRow = -1;        // row of probe being joined
+    transient private Tuple probeTuple = null;  // tuple of child2 being joined
+    transient private JoinHashTable matches = null;  // table of match
+    transient private int match = -1;           // next row of matches to join
+
+    /** Join the spilled tuples of a partition, at the specified depth. */
+    private HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int mapSize, int depth) {
+        this(p, child1, child2, mapSize);
+        this.depth = depth;
+    }
+
+    /** @return the hash of a join field: its int value or string hash */
+    private static int hash(Field f) {
+        if (f instanceof IntField)
+            return ((IntField) f).getValue();
+        return JoinHashTable.hash(((StringField) f).getValue());
+    }
+
+    /** @return the hash of field i of a row of a batch */
+    private static int hash(TupleBatch b, int i, int row) {
+        if (b.getTupleDesc().getFieldType(i) == Type.INT_TYPE)
+            return b.ints(i)[row];
+        return JoinHashTable.hash(b.strings(i)[row]);
+    }
+
+    /**
+     * @return the partition of a join value hash. The hash is mixed
+     *         differently at every depth, so a spilled partition is split
+     *         again by another function.
+     */
+    private int partition(int hash) {
+        int h = (hash + depth) * 0x9E3779B1;
+        h ^= h >>> 15;
+        h *= 0x85EBCA77;
+        h ^= h >>> 13;
+        return (h & 0x7FFFFFFF) % NUM_PARTITIONS;
+    }
+
+    /**
+     * Read child1 into the hash tables of its partitions. Whenever more
+     * than mapSize tuples are held in memory, the largest partition in
+     * memory is written to a spill file, along with the tuples of that
+     * partition that follow.
+     * <p>
+     * If child2 reads a table through SeqScan (and Filters), a KeyFilter of
+     * the join values of child1 is pushed down to it, so tuples of child2
+     * that cannot join are dropped by the scan.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        int f1 = pred.getField1();
+        boolean intKey = child1.getTupleDesc().getFieldType(f1) == Type.INT_TYPE;
+        if (KeyFilter.pushDown(child2, pred.getField2(), null))
+            keyFilter = new KeyFilter();
+        TupleBatch b;
+        while ((b = TupleBatch.next(child1, buildBuffer)) != null) {
+            for (int k = 0; k < b.numRows(); k++) {
+                int row = b.row(k);
+                if (keyFilter != null) {
+                    if (intKey)
+                        keyFilter.add(b.ints(f1)[row]);
+                    else
+                        keyFilter.add(b.strings(f1)[row]);
+                }
+                int part = partition(hash(b, f1, row));
+                if (tables[part] == null) {
+                    buildSpill[part].add(b.toTuple(row));
+                    continue;
+                }
+                tables[part].add(b, row);
+                if (++inMemory > mapSize && depth < MAX_DEPTH)
+                    spillLargest();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
         }
-        return cnt > 0;
+        for (SpillFile f : buildSpill)
+            if (f != null)
+                f.finish();
+        if (keyFilter != null) {
+            keyFilter.finish();
+            KeyFilter.pushDown(child2, pred.getField2(), keyFilter);
+        }
+    }
 
+    /** Move the largest partition in memory to a spill file. */
+    private void spillLargest() throws DbException {
+        int part = -1;
+        for (int i = 0; i < NUM_PARTITIONS; i++)
+            if (tables[i] != null && (part < 0 || tables[i].size() > tables[part].size()))
+                part = i;
+        buildSpill[part] = new SpillFile(child1.getTupleDesc());
+        probeSpill[part] = new SpillFile(child2.getTupleDesc());
+        JoinHashTable table = tables[part];
+        for (int row = 0; row < table.size(); row++)
+            buildSpill[part].add(table.getTuple(row));
+        tables[part] = null;
+        inMemory -= table.size();
+    }
+
+    /**
+     * Return the table holding the partition of a probe value, or spill the
+     * probe tuple if its partition was spilled.
+     *
+     * @param t2 the probe tuple, or null to build it from probe and probeRow
+     * @return the table of the partition, or null if it was spilled
+     */
+    private JoinHashTable lookup(int hash, Tuple t2) throws DbException {
+        int part = partition(hash);
+        if (tables[part] != null)
+            return tables[part];
+        if (buildSpill[part].numTuples() > 0)
+            probeSpill[part].add(t2 != null ? t2 : probe.toTuple(probeRow));
+        return null;
+    }
+
+    /**
+     * Start joining the next spilled partition that has tuples on both
+     * sides, by joining its spill files with a HashEquiJoin one level
+     * deeper.
+     *
+     * @return false if there are no more spilled partitions
+     */
+    private boolean nextSpilled() throws DbException, TransactionAbortedException {
+        closeSpilled();
+        while (nextSpilled < NUM_PARTITIONS) {
+            int part = nextSpilled++;
+            if (buildSpill[part] == null)
+                continue;
+            if (buildSpill[part].numTuples() == 0 || probeSpill[part].numTuples() == 0) {
+                deleteSpill(part);
+                continue;
+            }
+            probeSpill[part].finish();
+            spilled = new HashEquiJoin(pred, buildSpill[part].iterator(),
+                    probeSpill[part].iterator(), mapSize, depth + 1);
+            spilled.open();
+            return true;
+        }
+        return false;
+    }
+
+    /** Close the join of the current spilled partition and delete its files. */
+    private void closeSpilled() {
+        if (spilled != null) {
+            spilled.close();
+            spilled = null;
+            deleteSpill(nextSpilled - 1);
+        }
+    }
+
+    private void deleteSpill(int part) {
+        if (buildSpill[part] != null)
+            buildSpill[part].delete();
+        if (probeSpill[part] != null)
+            probeSpill[part].delete();
+        buildSpill[part] = probeSpill[part] = null;
     }
 
 
@@ -76,88 +258,176 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        buildBuffer = new TupleBatch(child1.getTupleDesc());
+        probeBuffer = new TupleBatch(child2.getTupleDesc());
+        out = new TupleBatch(comboTD);
+        start();
+        super.open();
+    }
+
+    /** Call reset, deleting the spill files it wrote if it fails. */
+    private void start() throws DbException, TransactionAbortedException {
+        boolean started = false;
+        try {
+            reset();
+            started = true;
+        } finally {
+            if (!started)
+                release();
+        }
+    }
+
+    /** Start the join over: partition child1, and prepare to read child2. */
+    private void reset() throws DbException, TransactionAbortedException {
+        tables = new JoinHashTable[NUM_PARTITIONS];
+        for (int i = 0; i < NUM_PARTITIONS; i++)
+            tables[i] = new JoinHashTable(child1.getTupleDesc(), pred.getField1());
+        inMemory = 0;
+        buildSpill = new SpillFile[NUM_PARTITIONS];
+        probeSpill = new SpillFile[NUM_PARTITIONS];
+        probe = null;
+        probeTuple = null;
+        matches = null;
+        match = -1;
+        nextSpilled = 0;
+        spilled = null;
+        build();
+        probing = true;
+    }
+
+    /**
+     * Drop the hash tables and the KeyFilter pushed down to child2, and
+     * delete all spill files.
+     */
+    private void release() {
+        if (keyFilter != null)
+            KeyFilter.pushDown(child2, pred.getField2(), null);
+        keyFilter = null;
+        if (buildSpill != null) {
+            closeSpilled();
+            for (int i = 0; i < NUM_PARTITIONS; i++)
+                deleteSpill(i);
+        }
+        tables = null;
+        buildSpill = probeSpill = null;
     }
 
     public void close() {
         super.close();
+        release();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.probe=null;
+        this.probeTuple=null;
+        this.matches=null;
+        this.match=-1;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        release();
         child1.rewind();
         child2.rewind();
+        discardBatch();
+        start();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * Returns the next batch of joined rows. This is a hybrid hash join:
+     * child1 is split into NUM_PARTITIONS partitions by the hash of its join
+     * field, and partitions are spilled to disk as needed to keep at most
+     * mapSize tuples in memory. Batches of child2 are probed against the
+     * partitions in memory; tuples of child2 that belong to a spilled
+     * partition are spilled too, and once child2 is exhausted the spilled
+     * partitions are joined pairwise, partitioning them again if they do
+     * not fit in memory either. Both children are read once.
      * <p>
-     * Note that the tuples returned from this particular implementation of Join
-     * are simply the concatenation of joining tuples from the left and right
-     * relation. Therefore, there will be two copies of the join attribute in
-     * the results. (Removing such duplicate columns can be done with an
-     * additional projection operator if needed.)
+     * Every row of the result is the concatenation of joining tuples from
+     * the left and right relation, so the join attribute appears twice
+     * (removing such duplicate columns can be done with an additional
+     * projection operator if needed.)
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
-     * @return The next matching tuple.
-     * @see JoinPredicate#filter
+     *
+     * @return The next batch of matching rows, or null if there are none.
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        out.clear();
+        int n1 = child1.getTupleDesc().numFields();
+        int n2 = child2.getTupleDesc().numFields();
+        int f2 = pred.getField2();
+        boolean intKey = child2.getTupleDesc().getFieldType(f2) == Type.INT_TYPE;
+        while (!out.isFull()) {
+            if (match != -1) {
+                // set fields in combined row
+                int row = out.addRow();
+                matches.copyRow(match, out, row);
+                for (int i = 0; i < n2; i++)
+                    out.copyField(n1 + i, row, probe, i, probeRow);
+                match = matches.next(match);
+                continue;
+            }
+            if (!probing) {
+                if (out.numRows() > 0)
+                    break;
+                TupleBatch b = spilled == null ? null : spilled.nextBatch();
+                if (b != null)
+                    return b;
+                if (!nextSpilled())
+                    break;
+                continue;
+            }
+            if (probe == null || probeK >= probe.numRows()) {
+                probe = TupleBatch.next(child2, probeBuffer);
+                probeK = 0;
+                if (probe == null) {
+                    // child2 is done: join the spilled partitions
+                    probing = false;
+                    continue;
+                }
+            }
+            probeRow = probe.row(probeK++);
+            matches = lookup(hash(probe, f2, probeRow), null);
+            if (matches != null)
+                match = intKey ? matches.find(probe.ints(f2)[probeRow])
+                        : matches.find(probe.strings(f2)[probeRow]);
+        }
+        return out.numRows() == 0 ? null : out;
     }
 
-
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are views that merge the joining tuples of
+     * child1 and child2 without copying their fields; see
+     * {@link #nextBatch} for the algorithm.
+     * 
+     * @return The next matching tuple.
+     */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+        while (true) {
+            if (match != -1) {
+                Tuple left = matches.getTuple(match);
+                match = matches.next(match);
+                return Tuple.merge(comboTD, left, probeTuple);
+            }
+            if (!probing) {
+                if (spilled != null && spilled.hasNext())
+                    return spilled.next();
+                if (!nextSpilled())
+                    return null;
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            }
+            if (!child2.hasNext()) {
+                // child2 is done: join the spilled partitions
+                probing = false;
+                continue;
+            }
+            probeTuple = child2.next();
+            Field key = probeTuple.getField(pred.getField2());
+            matches = lookup(hash(key), probeTuple);
+            if (matches != null)
+                match = matches.find(key);
         }
-
-        return null;
     }
 
     @Override
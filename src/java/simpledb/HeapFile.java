@@ -133,8 +133,10 @@ public class HeapFile implements DbFile {
         	} else { // all pages are full
         		HeapPageId pid = new HeapPageId(getId(), numPages());
         		HeapPage newHp = new HeapPage(pid, HeapPage.createEmptyPageData());
-        		newHp.insertTuple(t);
+        		// extend the file with an empty page; the tuple reaches the
+        		// disk through the BufferPool, after it has been logged
         		writePage(newHp);
+        		newHp.insertTuple(t);
         		pages.add(newHp);
         	}
         } catch (DbException e) {
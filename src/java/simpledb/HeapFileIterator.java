@@ -5,6 +5,10 @@ import java.util.*;
 /**
  * Implements a DbFileIterator that iterates all tuples in a HeapFile
  * by wrapping HeapPage.iterator().
+ * <p>
+ * The page being iterated is pinned in the BufferPool, so its tuples are
+ * returned in place rather than copied out. The pin is released when the
+ * iterator moves to the next page or is closed.
  */
 public class HeapFileIterator implements DbFileIterator {
 	
@@ -19,6 +23,10 @@ public class HeapFileIterator implements DbFileIterator {
 	 * Current page number in the HeapFile
 	 */
 	int pgNo;
+	/**
+	 * Pin on the current page, or null if no page is pinned
+	 */
+	PageHandle handle = null;
 	
 	public HeapFileIterator(HeapFile f, TransactionId tid) {
 		this.f = f;
@@ -27,15 +35,12 @@ public class HeapFileIterator implements DbFileIterator {
 	
 	@Override
 	public void open() throws DbException, TransactionAbortedException {
-		try {
-			// Use HeapPage.iterator() in the first page
-			pgNo = 0;
-			i = PageToTuples(pgNo).iterator();
-		} catch (TransactionAbortedException e) {
-			e.printStackTrace();
-		} catch (DbException e) {
-			e.printStackTrace();
-		}
+		// Use HeapPage.iterator() in the first page
+		pgNo = 0;
+		if (f.numPages() > 0)
+			i = pinPage(pgNo);
+		else
+			i = Collections.<Tuple>emptyList().iterator();
 	}
 
 	@Override
@@ -44,13 +49,14 @@ public class HeapFileIterator implements DbFileIterator {
 		if (i == null)
 			return false;
 		// current page has more tuples
-		if (i.hasNext())
-			return true;
-		// otherwise, check the next page
-		// if next page is empty, we've reached EOF
-		if (pgNo < f.numPages()-1)
-			return PageToTuples(pgNo+1).size() != 0;
-		return false;
+		// otherwise, move on to the next page that has any
+		while (!i.hasNext()) {
+			if (pgNo >= f.numPages()-1)
+				return false;
+			pgNo++;
+			i = pinPage(pgNo);
+		}
+		return true;
 	}
 
 	@Override
@@ -60,18 +66,10 @@ public class HeapFileIterator implements DbFileIterator {
 		if (i == null)
 			throw new NoSuchElementException(
 					"next(): iterator not opened.");
-		// if current page has no more tuples 
-		// move to the next page if possible
-		if (!i.hasNext() && pgNo < f.numPages()-1)
-		{
-			pgNo++;
-			i = PageToTuples(pgNo).iterator();
-		}	
-		// if current page has more tuples
-		if (i.hasNext())
+		if (hasNext())
 			return i.next();
 		throw new NoSuchElementException(
-				"next(): reached end of page.");
+				"next(): reached end of file.");
 	}
 
 	@Override
@@ -82,36 +80,34 @@ public class HeapFileIterator implements DbFileIterator {
 	
 	@Override
 	public void close() {
+		unpinPage();
 		i = null;
 	}
 	
 	/**
-	 * Helper function to construct an ArrayList of tuples form a HeapPage.
+	 * Helper function to pin a HeapPage and iterate over its tuples. The
+	 * previously pinned page, if any, is unpinned first.
 	 * 
 	 * @param pgNo page number of the HeapPage.
-	 * @return An ArrayList of tuples that reside in this page.
+	 * @return An iterator over the tuples that reside in this page.
 	 * @throws DbException
 	 * @throws TransactionAbortedException
 	 */
-	private ArrayList<Tuple> PageToTuples(int pgNo) throws DbException, TransactionAbortedException {
-		try {
-			// get the HeapPage with page number pgNo
-			PageId pid = new HeapPageId(f.getId(), pgNo);
-			Page p = Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-			HeapPage hp = (HeapPage) p;
-			
-			// add tuples in the page to an ArrayList
-			Iterator<Tuple> it = hp.iterator();
-			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-			while (it.hasNext())
-				tuples.add(it.next());
-			return tuples;
-		} catch (TransactionAbortedException e) {
-			e.printStackTrace();
-		} catch (DbException e) {
-			e.printStackTrace();
+	private Iterator<Tuple> pinPage(int pgNo) throws DbException, TransactionAbortedException {
+		unpinPage();
+		// get the HeapPage with page number pgNo
+		handle = Database.getBufferPool().pinPage(tid, f.getId(), pgNo, Permissions.READ_ONLY);
+		HeapPage hp = (HeapPage) handle.getPage();
+		return hp.iterator();
+	}
+
+	/**
+	 * Helper function to release the pin on the current page, if any.
+	 */
+	private void unpinPage() {
+		if (handle != null) {
+			handle.unpin();
+			handle = null;
 		}
-		// we should never get here
-		return null;
 	}
 }
@@ -100,6 +100,17 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * @return the data of the before image of this page (see
+     *   {@link #getBeforeImage}), without parsing it; not to be modified
+     */
+    byte[] getBeforeImageData() {
+        synchronized(oldDataLock)
+        {
+            return oldData;
+        }
+    }
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
@@ -379,16 +390,45 @@ public class HeapPage implements Page {
         	header[bytePos] = (byte) (header[bytePos] & ~(1 << bitPos));         
     }
 
+    /**
+     * @return the number of bytes of each tuple slot on this page
+     */
+    int getSlotSize() {
+        return td.getSize();
+    }
+
+    /**
+     * @return the offset of the tuple in slot i within the page data
+     *   (see {@link #getPageData})
+     */
+    int getSlotOffset(int i) {
+        return getHeaderSize() + i * td.getSize();
+    }
+
+    /**
+     * Returns true if slot i is filled in the specified page data
+     * (see {@link #getPageData}).
+     */
+    static boolean isSlotUsed(byte[] data, int i) {
+        return (data[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /**
+     * Fill or clear slot i in the specified page data.
+     */
+    static void markSlotUsed(byte[] data, int i, boolean value) {
+        if (value)
+            data[i / 8] = (byte) (data[i / 8] | (1 << (i % 8)));
+        else
+            data[i / 8] = (byte) (data[i / 8] & ~(1 << (i % 8)));
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        ArrayList<Tuple> usedTuples = new ArrayList<Tuple>();
-        for (int i = 0; i < numSlots; i++)
-        	if (isSlotUsed(i))
-        		usedTuples.add(tuples[i]);
-        return new HeapPageIterator(usedTuples);
+        return new HeapPageIterator(this);
     }
 }
 
@@ -36,6 +36,31 @@ public class HeapPageId implements PageId {
         return pgNo;
     }
 
+    /**
+     * Pack a table id and a page number into a single long, the table id in
+     * the high 32 bits and the page number in the low 32 bits.
+     *
+     * @see #toLong
+     */
+    public static long pack(int tableId, int pgNo) {
+        return ((long) tableId << 32) | (pgNo & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return this page id packed into a long, for use as a key of primitive
+     *   maps such as the BufferPool page table
+     */
+    public long toLong() {
+        return pack(tableId, pgNo);
+    }
+
+    /**
+     * @return the page id packed into the specified long by {@link #toLong}
+     */
+    public static HeapPageId fromLong(long id) {
+        return new HeapPageId((int) (id >>> 32), (int) id);
+    }
+
     /**
      * @return a hash code for this page, represented by the concatenation of
      *   the table number and the page number (needed if a PageId is used as a
@@ -44,9 +69,7 @@ public class HeapPageId implements PageId {
      */
     public int hashCode() {
     	// concatenate tableId and pgNo
-    	Long codeLong = Long.parseLong(new Integer(tableId).toString() + new Integer(pgNo).toString());
-    	// return the hashCode
-    	return codeLong.hashCode();
+    	return Long.hashCode(toLong());
     }
 
     /**
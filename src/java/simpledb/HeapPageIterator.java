@@ -6,33 +6,42 @@ import simpledb.Tuple;
 /**
  * Implements the iterator in HeapPage
  * Overrides Iterator<Tuple> to disable remove()
+ * <p>
+ * The iterator walks the slots of the page in place instead of copying the
+ * used tuples out, so callers should keep the page pinned while iterating.
  */
 public class HeapPageIterator implements Iterator<Tuple> {
 
 	private static final long serialVersionUID = 1L;
 	/**
-	 * Tuples in a heap page
+	 * The page whose tuples are returned
 	 */
-	ArrayList<Tuple> tuples;
+	HeapPage page;
 	
 	/**
-	 * Iterator for usedTuples
+	 * Next slot to look at
 	 */
-	Iterator<Tuple> i;
+	int slot;
 	
-	public HeapPageIterator(ArrayList<Tuple> usedTuples) {
-		tuples = usedTuples;
-		i = usedTuples.iterator();
+	public HeapPageIterator(HeapPage page) {
+		this.page = page;
+		this.slot = 0;
 	}
 	
 	@Override
 	public boolean hasNext() {
-		return i.hasNext();
+		// skip empty slots
+		while (slot < page.numSlots && !page.isSlotUsed(slot))
+			slot++;
+		return slot < page.numSlots;
 	}
 
 	@Override
 	public Tuple next() {
-		return i.next();
+		if (!hasNext())
+			throw new NoSuchElementException(
+					"next(): no more tuples on page.");
+		return page.tuples[slot++];
 	}
 
 	@Override
@@ -96,18 +96,18 @@ public class Insert extends Operator {
     		while(m_child.hasNext())
     		{
     			Tuple insert = m_child.next(); //if the child iterator has next iterator, insert it
-    			try{
-    				Database.getBufferPool().insertTuple(m_t, m_tableid, insert);
-    			}catch(IOException e)
-    			{
-    				e.printStackTrace();
-    			}
+    			Database.getBufferPool().insertTuple(m_t, m_tableid, insert);
     			num++;     //increment the number of inserted records by 1
     		}
     		Field count = new IntField(num);
     		m_tuple.setField(0, count);    //set the value into the tuple
     	}
     	}
+    	catch(IOException e)
+    	{
+    		// the change could not be logged or written: abort the transaction
+    		throw new DbException("insert failed: " + e.getMessage());
+    	}
     	catch(DbException e)
     	{
     		e.printStackTrace();
@@ -1,28 +1,36 @@
 package simpledb;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered by an {@link AggregateHashTable}, with one probe per
+ * tuple, and the aggregate of each group is accumulated in primitive long
+ * arrays indexed by group number: the sum, minimum or maximum of its values,
+ * and their count.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
-    
+
     private int m_gbfield;
     private int m_afield;
     private Type m_gbfieldtype;
     private Op m_what;
     private boolean m_nogrouping = false;
-    private HashMap<Field, Integer> m_AggregateValue; //HashMap to keep aggregate value for each grouped field
-    private HashMap<Field, Integer> m_CountNum;   //HashMap to record the number of elements in each grouped field
+    private AggregateHashTable m_groups;  //group number of each group-by value, null if NO_GROUPING
+    private long[] m_values;   //sum, minimum or maximum of the values of each group, depending on m_what
+    private long[] m_counts;   //number of values of each group
+    private int m_numGroups = 0;
     private ArrayList<Tuple> m_results;
     private String m_afieldname = "";
     private String m_gbfieldname = "";
+    transient private TupleDesc m_td;   //TupleDesc the field names were read from
     /**
      * Aggregate constructor
-     * 
+     *
      * @param gbfield
      *            the 0-based index of the group-by field in the tuple, or
      *            NO_GROUPING if there is no grouping
@@ -41,99 +49,107 @@ public class IntegerAggregator implements Aggregator {
     	m_afield = afield;
     	m_gbfieldtype = gbfieldtype;
     	m_what = what;
-    	m_AggregateValue = new HashMap <Field, Integer>();
-    	m_CountNum = new HashMap <Field, Integer>();
+    	m_values = new long[16];
+    	m_counts = new long[16];
     	if(gbfield == Aggregator.NO_GROUPING)  //if NO_GROUPING, set the m_nogrouping flag to true
     		m_nogrouping = true;
+    	else
+    		m_groups = new AggregateHashTable(gbfieldtype);
     }
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
      * constructor
-     * 
+     *
      * @param tup
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-    	Field GroupField;    //get the Field of the group-by field in the tuple
-    	int AggregateValue;
-    	int CountNum;
-    	IntField AggField = (IntField)tup.getField(m_afield);
-    	int value = AggField.getValue();   //get the value in the aggregate field
-    	
-    	//if NO_GROUPING, create a new group-by field to record not grouped values 
-    	if(m_nogrouping)
-    		GroupField = new IntField(Aggregator.NO_GROUPING); 
-    	//if grouped, get the Field of the group-by field in the tuple
-    	else
-    	{
-    		GroupField = tup.getField(m_gbfield);
-    		m_gbfieldname = tup.getTupleDesc().getFieldName(m_gbfield);
-    	}
-    	
-    	m_afieldname = tup.getTupleDesc().getFieldName(m_afield);
-    	
-    	//If GroupField doesn't exist in the HashMap, insert a new <Field, Integer> pair
-    	if(!m_AggregateValue.containsKey(GroupField))
-    		m_AggregateValue.put(GroupField, value);
-    	
-    	if(!m_CountNum.containsKey(GroupField))
-    		m_CountNum.put(GroupField, 0);
-    	
-    	//Get the aggregate value and number of elements in the hashmap
-    	AggregateValue = m_AggregateValue.get(GroupField);
-    	CountNum = m_CountNum.get(GroupField);
-    	
-    	if(m_what == Op.MAX)
-    	{
-    		if(value >= AggregateValue){
-    			AggregateValue = value;
+    	setFieldNames(tup.getTupleDesc());
+    	int value = ((IntField)tup.getField(m_afield)).getValue();   //get the value in the aggregate field
+
+    	//if NO_GROUPING, all the values go to group 0
+    	merge(m_nogrouping ? 0 : m_groups.group(tup.getField(m_gbfield)), value);
+    }
+
+    /**
+     * Merge the rows of a batch into the aggregate, reading the group-by
+     * and aggregate values straight from the columns.
+     *
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	setFieldNames(batch.getTupleDesc());
+    	int[] values = batch.ints(m_afield);
+    	int n = batch.numRows();
+    	if (m_nogrouping) {
+    		for (int k = 0; k < n; k++)
+    			merge(0, values[batch.row(k)]);
+    	} else if (m_gbfieldtype == Type.INT_TYPE) {
+    		int[] keys = batch.ints(m_gbfield);
+    		for (int k = 0; k < n; k++) {
+    			int r = batch.row(k);
+    			merge(m_groups.group(keys[r]), values[r]);
     		}
-    		
-    		m_AggregateValue.put(GroupField, AggregateValue);
-    	}
-    	
-    	if(m_what == Op.MIN)
-    	{
-    		if(value <= AggregateValue){
-    			AggregateValue = value;
+    	} else {
+    		String[] keys = batch.strings(m_gbfield);
+    		for (int k = 0; k < n; k++) {
+    			int r = batch.row(k);
+    			merge(m_groups.group(keys[r]), values[r]);
     		}
-    		
-    		m_AggregateValue.put(GroupField, AggregateValue);
     	}
-    	
-    	if(m_what == Op.COUNT)
-    	{
-    		CountNum++;
-    		m_CountNum.put(GroupField, CountNum);
-    	}
-    	
-    	if(m_what == Op.SUM)
-    	{
-    		//If this tuple is the first tuple inserted into this group, don't add it to itself
-    		if(CountNum != 0)     
-    			AggregateValue += value;
-    		
-    		CountNum++;
-    		m_AggregateValue.put(GroupField, AggregateValue);
-    		m_CountNum.put(GroupField, CountNum);
+    }
+
+    /**
+     * Read the names of the output fields, once per TupleDesc.
+     */
+    private void setFieldNames(TupleDesc td) {
+    	if (td == m_td)
+    		return;
+    	m_td = td;
+    	m_afieldname = td.getFieldName(m_afield);
+    	if (!m_nogrouping)
+    		m_gbfieldname = td.getFieldName(m_gbfield);
+    }
+
+    /**
+     * Merge one aggregate value into the aggregate of a group.
+     *
+     * @param g the group, which is new if it equals m_numGroups
+     */
+    private void merge(int g, int value) {
+    	if (g == m_numGroups) {
+    		if (g == m_values.length) {
+    			m_values = Arrays.copyOf(m_values, g * 2);
+    			m_counts = Arrays.copyOf(m_counts, g * 2);
+    		}
+    		m_values[g] = (m_what == Op.SUM || m_what == Op.AVG) ? 0 : value;
+    		m_counts[g] = 0;
+    		m_numGroups++;
     	}
-    	
-    	if(m_what == Op.AVG)
-    	{
-    		if(CountNum != 0)
-    			AggregateValue += value;
-    		
-    		CountNum++;
-    		m_AggregateValue.put(GroupField, AggregateValue);
-    		m_CountNum.put(GroupField, CountNum);
+    	switch (m_what) {
+    	case MIN:
+    		if (value < m_values[g])
+    			m_values[g] = value;
+    		break;
+    	case MAX:
+    		if (value > m_values[g])
+    			m_values[g] = value;
+    		break;
+    	case SUM:
+    	case AVG:
+    		m_values[g] += value;
+    		break;
+    	default:
+    		break;
     	}
+    	m_counts[g]++;
     }
 
     /**
      * Create a DbIterator over group aggregate results.
-     * 
+     *
      * @return a DbIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
@@ -159,76 +175,27 @@ public class IntegerAggregator implements Aggregator {
     		FieldName[1] = m_afieldname;
     	}
     	TupleDesc schema = new TupleDesc(FieldType, FieldName);
-    	
-    	m_results = new ArrayList<Tuple>();
-    	
-    	if(m_nogrouping)
+
+    	m_results = new ArrayList<Tuple>(m_numGroups);
+
+    	for (int g = 0; g < m_numGroups; g++)
     	{
+    		int value;
     		if(m_what == Op.COUNT)
-    		{
-    			for(Field GroupField: m_CountNum.keySet())
-    			{
-    				int value = m_CountNum.get(GroupField);
-    				Tuple t = new Tuple(schema);
-        			t.setField(0, new IntField(value));
-        			m_results.add(t);
-    			}
-    		}
+    			value = (int)m_counts[g];
     		else if(m_what == Op.AVG)
-    		{
-    			for (Field GroupField: m_AggregateValue.keySet())
-    			{
-    				int value = (int)(m_AggregateValue.get(GroupField)/m_CountNum.get(GroupField));
-    				Tuple t = new Tuple(schema);
-        			t.setField(0, new IntField(value));
-        			m_results.add(t);
-    			}
-    		}
-    		else {
-    			for (Field GroupField: m_AggregateValue.keySet())
-    			{
-    				int value = m_AggregateValue.get(GroupField);
-    				Tuple t = new Tuple(schema);
-        			t.setField(0, new IntField(value));
-        			m_results.add(t);
-    			}
-			}
-    	}
-    	else
-    	{
-    		if(m_what == Op.COUNT)
-    		{
-    			for(Field GroupField: m_CountNum.keySet())
-    			{
-    				int value = m_CountNum.get(GroupField);
-    				Tuple t = new Tuple(schema);
-    				t.setField(0, GroupField);
-        			t.setField(1, new IntField(value));
-        			m_results.add(t);
-    			}
-    		}
-    		else if (m_what == Op.AVG)
-    		{
-    			for (Field GroupField: m_AggregateValue.keySet())
-    			{
-    				int value = (int)(m_AggregateValue.get(GroupField)/m_CountNum.get(GroupField));
-    				Tuple t = new Tuple(schema);
-    				t.setField(0, GroupField);
-        			t.setField(1, new IntField(value));
-        			m_results.add(t);
-    			}
-    		}
+    			value = (int)(m_values[g]/m_counts[g]);
+    		else
+    			value = (int)m_values[g];
+    		Tuple t = new Tuple(schema);
+    		if(m_nogrouping)
+    			t.setField(0, new IntField(value));
     		else
     		{
-    			for (Field GroupField: m_AggregateValue.keySet())
-    			{
-    				int value = m_AggregateValue.get(GroupField);
-    				Tuple t = new Tuple(schema);
-        			t.setField(0, GroupField);
-        			t.setField(1, new IntField(value));
-        			m_results.add(t);
-    			}
-			}
+    			t.setField(0, m_groups.getKey(g));
+    			t.setField(1, new IntField(value));
+    		}
+    		m_results.add(t);
     	}
     return new TupleIterator(schema, m_results);
     }
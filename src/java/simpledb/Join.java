@@ -13,8 +13,15 @@ public class Join extends Operator {
     private DbIterator child1, child2;
     private TupleDesc td1, td2, tdJoin;
     private int field1, field2;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private Iterator<Tuple> it;
+
+    /** Size of a block of outer tuples, in pages. */
+    public final static int BLOCK_PAGES = 64;
+
+    transient private ArrayList<Tuple> block;  // block of child1 being joined
+    transient private int blockSize;           // tuples per block
+    transient private int blockPos = 0;        // next tuple of block to try
+    transient private Tuple t2 = null;         // tuple of child2 being joined
+    transient private boolean done = false;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -72,38 +79,53 @@ public class Join extends Operator {
             TransactionAbortedException {
         child1.open();
         child2.open();
-        // simple nested loop join
-        while (child1.hasNext()) {
-    		Tuple t1 = ((Tuple) child1.next());
-    		while (child2.hasNext()) {
-    			Tuple t2 = ((Tuple) child2.next());
-    			if (p.filter(t1, t2)) {
-    				Tuple tm = Tuple.merge(t1, t2);
-    				childTups.add(tm);
-    			}
-    		}
-    		child2.rewind();
-    	}
-        it = childTups.iterator();
+        blockSize = Math.max(1, BLOCK_PAGES * BufferPool.getPageSize() / td1.getSize());
+        block = new ArrayList<Tuple>();
+        reset();
         super.open();
     }
 
+    /**
+     * Load the next block of child1 tuples.
+     *
+     * @return true if any tuples were loaded
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockSize && child1.hasNext())
+            block.add(child1.next());
+        return !block.isEmpty();
+    }
+
+    /** Start the join over, loading the first block of child1. */
+    private void reset() throws DbException, TransactionAbortedException {
+        t2 = null;
+        done = !loadBlock();
+    }
+
     public void close() {
         child1.close();
         child2.close();
         super.close();
-        it = null;
+        block = null;
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-    	it = childTups.iterator();
+        child1.rewind();
+        child2.rewind();
+        discardBatch();
+        reset();
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. This implementation is a block nested
+     * loops join: child1 is read in blocks of BLOCK_PAGES pages worth of
+     * tuples, and child2 is scanned once per block, each of its tuples being
+     * compared with every tuple of the block. Matches are returned as they
+     * are found, so the output is ordered by block, then by child2.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -118,10 +140,25 @@ public class Join extends Operator {
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        while (!done) {
+            if (t2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (p.filter(t1, t2))
+                        return Tuple.merge(tdJoin, t1, t2);
+                }
+                t2 = null;
+            }
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+                continue;
+            }
+            // child2 is done: advance child1
+            child2.rewind();
+            done = !loadBlock();
+        }
+        return null;
     }
 
     @Override
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinBenchmark times the equi-join operators on generated in-memory
+ * inputs: a build side with the distinct keys 0..rows-1 in random order,
+ * and a probe side of probeFactor * rows tuples with random keys among
+ * them, so every probe tuple has exactly one match. Run it with
+ * <pre>
+ *     java simpledb.SimpleDb benchmark [rows [probeFactor [runs]]]
+ * </pre>
+ * Each join is run the specified number of times and the fastest run is
+ * reported, along with the number of rows produced, which must agree.
+ */
+public class JoinBenchmark {
+
+    private interface JoinFactory {
+        Operator make(JoinPredicate p, DbIterator child1, DbIterator child2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int probeFactor = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        Random rand = new Random(0);
+        TupleDesc td = Utility.getTupleDesc(2);
+        int[] keys = new int[rows];
+        for (int i = 0; i < rows; i++)
+            keys[i] = i;
+        for (int i = rows - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int k = keys[i];
+            keys[i] = keys[j];
+            keys[j] = k;
+        }
+        ArrayList<Tuple> build = new ArrayList<Tuple>(rows);
+        for (int i = 0; i < rows; i++)
+            build.add(Utility.getHeapTuple(new int[]{keys[i], i}));
+        int probeRows = (int) Math.min(Integer.MAX_VALUE, (long) rows * probeFactor);
+        ArrayList<Tuple> probe = new ArrayList<Tuple>(probeRows);
+        for (int i = 0; i < probeRows; i++)
+            probe.add(Utility.getHeapTuple(new int[]{rand.nextInt(rows), i}));
+
+        LinkedHashMap<String, JoinFactory> joins = new LinkedHashMap<String, JoinFactory>();
+        joins.put("hash", new JoinFactory() {
+            public Operator make(JoinPredicate p, DbIterator c1, DbIterator c2) {
+                return new HashEquiJoin(p, c1, c2);
+            }
+        });
+        joins.put("radix hash", new JoinFactory() {
+            public Operator make(JoinPredicate p, DbIterator c1, DbIterator c2) {
+                return new RadixHashJoin(p, c1, c2);
+            }
+        });
+        if (ParallelHashEquiJoin.THREADS > 1) {
+            joins.put("parallel hash", new JoinFactory() {
+                public Operator make(JoinPredicate p, DbIterator c1, DbIterator c2) {
+                    return new ParallelHashEquiJoin(p, c1, c2, ParallelHashEquiJoin.THREADS);
+                }
+            });
+        }
+
+        System.out.println("build " + rows + " rows, probe " + probeRows + " rows, "
+                + RadixHashJoin.radixBits(rows) + " radix bits");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (Map.Entry<String, JoinFactory> e : joins.entrySet()) {
+            long best = Long.MAX_VALUE, count = 0;
+            for (int run = 0; run < runs; run++) {
+                Operator j = e.getValue().make(p, new TupleIterator(td, build),
+                        new TupleIterator(td, probe));
+                long start = System.nanoTime();
+                j.open();
+                count = 0;
+                TupleBatch b;
+                while ((b = j.nextBatch()) != null)
+                    count += b.numRows();
+                j.close();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%-14s %10d rows %8d ms", e.getKey(),
+                    count, best / 1000000));
+            if (count != probeRows)
+                throw new RuntimeException("JoinBenchmark: " + e.getKey()
+                        + " returned " + count + " rows, expected " + probeRows);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * JoinHashTable holds the build side of a hash join. Rows are stored
+ * contiguously in a chunked arena of primitive arrays: the INT_TYPE fields
+ * of a row are adjacent entries of an int[] chunk and its STRING_TYPE
+ * fields adjacent entries of a String[] chunk, so a table of n rows costs a
+ * few arrays per CHUNK_ROWS rows instead of n Tuples, Fields and lists.
+ * <p>
+ * The index is an open addressing table with linear probing, keyed on the
+ * int value of an INT_TYPE join field or on the hash of a STRING_TYPE one.
+ * Each slot stores its key next to the first row with that key, so probing
+ * compares ints without touching the rows; the rows with the same key are
+ * linked in a chain through the arena, most recently added first:
+ * <pre>
+ *     for (int r = table.find(key); r != -1; r = table.next(r))
+ *         ... table.getInt(r, field) ...
+ * </pre>
+ */
+public class JoinHashTable {
+
+    private static final int CHUNK_SHIFT = 12;
+    /** Rows per chunk of the arena. */
+    public static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_ROWS - 1;
+
+    private final TupleDesc td;
+    private final int keyField;
+    private final boolean intKey;
+    // index of each field among the int or the string fields of a row
+    private final int[] column;
+    private final int numInts, numStrings;
+
+    private final ArrayList<int[]> intChunks = new ArrayList<int[]>();
+    private final ArrayList<String[]> stringChunks = new ArrayList<String[]>();
+    private final ArrayList<int[]> nextChunks = new ArrayList<int[]>();
+    private int size = 0;
+
+    private int[] heads;   // first row with the key of a slot, plus one; 0 if empty
+    private int[] keys;    // key, or hash of the key, of each slot
+    private int used = 0;  // slots in use
+
+    /**
+     * Create an empty table.
+     *
+     * @param td the TupleDesc of the rows
+     * @param keyField the join field the rows are looked up by
+     */
+    public JoinHashTable(TupleDesc td, int keyField) {
+        this.td = td;
+        this.keyField = keyField;
+        intKey = td.getFieldType(keyField) == Type.INT_TYPE;
+        column = new int[td.numFields()];
+        int ints = 0, strings = 0;
+        for (int i = 0; i < column.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                column[i] = ints++;
+            else
+                column[i] = strings++;
+        }
+        numInts = ints;
+        numStrings = strings;
+        heads = new int[64];
+        keys = new int[64];
+    }
+
+    /** @return the number of rows in the table */
+    public int size() {
+        return size;
+    }
+
+    /** @return the TupleDesc of the rows */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the slot index of a key in a table of the specified size */
+    private static int slot(int key, int mask) {
+        int h = key * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** @return the hash used for a STRING_TYPE key */
+    public static int hash(String key) {
+        return key.hashCode();
+    }
+
+    /** Append an empty row to the arena, and return its index. */
+    private int newRow() {
+        if ((size & CHUNK_MASK) == 0) {
+            if (numInts > 0)
+                intChunks.add(new int[CHUNK_ROWS * numInts]);
+            if (numStrings > 0)
+                stringChunks.add(new String[CHUNK_ROWS * numStrings]);
+            nextChunks.add(new int[CHUNK_ROWS]);
+        }
+        return size++;
+    }
+
+    /** Add a row of a batch to the table. */
+    public void add(TupleBatch b, int r) {
+        int row = newRow();
+        int chunk = row >>> CHUNK_SHIFT, off = row & CHUNK_MASK;
+        for (int i = 0; i < column.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                intChunks.get(chunk)[off * numInts + column[i]] = b.ints(i)[r];
+            else
+                stringChunks.get(chunk)[off * numStrings + column[i]] = b.strings(i)[r];
+        }
+        insert(row);
+    }
+
+    /** Add a tuple to the table. */
+    public void add(Tuple t) {
+        int row = newRow();
+        int chunk = row >>> CHUNK_SHIFT, off = row & CHUNK_MASK;
+        for (int i = 0; i < column.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                intChunks.get(chunk)[off * numInts + column[i]] = ((IntField) t.getField(i)).getValue();
+            else
+                stringChunks.get(chunk)[off * numStrings + column[i]] = ((StringField) t.getField(i)).getValue();
+        }
+        insert(row);
+    }
+
+    /** Link a new row into the chain of its key. */
+    private void insert(int row) {
+        int key;
+        String s = null;
+        if (intKey) {
+            key = getInt(row, keyField);
+        } else {
+            s = getString(row, keyField);
+            key = hash(s);
+        }
+        int mask = heads.length - 1;
+        int[] next = nextChunks.get(row >>> CHUNK_SHIFT);
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            if (heads[i] == 0) {
+                next[row & CHUNK_MASK] = -1;
+                heads[i] = row + 1;
+                keys[i] = key;
+                if (++used * 2 > heads.length)
+                    grow();
+                return;
+            }
+            if (keys[i] == key && (intKey || getString(heads[i] - 1, keyField).equals(s))) {
+                next[row & CHUNK_MASK] = heads[i] - 1;
+                heads[i] = row + 1;
+                return;
+            }
+        }
+    }
+
+    /** Double the number of slots. */
+    private void grow() {
+        int[] oldHeads = heads, oldKeys = keys;
+        heads = new int[oldHeads.length * 2];
+        keys = new int[oldKeys.length * 2];
+        int mask = heads.length - 1;
+        for (int j = 0; j < oldHeads.length; j++) {
+            if (oldHeads[j] == 0)
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (heads[i] != 0)
+                i = (i + 1) & mask;
+            heads[i] = oldHeads[j];
+            keys[i] = oldKeys[j];
+        }
+    }
+
+    /**
+     * @return the first row with the specified value of an INT_TYPE key, or
+     *         -1 if there is none
+     */
+    public int find(int key) {
+        int mask = heads.length - 1;
+        for (int i = slot(key, mask); heads[i] != 0; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return heads[i] - 1;
+        return -1;
+    }
+
+    /**
+     * @return the first row with the specified value of a STRING_TYPE key,
+     *         or -1 if there is none
+     */
+    public int find(String key) {
+        int h = hash(key);
+        int mask = heads.length - 1;
+        for (int i = slot(h, mask); heads[i] != 0; i = (i + 1) & mask)
+            if (keys[i] == h && getString(heads[i] - 1, keyField).equals(key))
+                return heads[i] - 1;
+        return -1;
+    }
+
+    /** @return the first row whose key equals the specified field, or -1 */
+    public int find(Field key) {
+        if (intKey)
+            return find(((IntField) key).getValue());
+        return find(((StringField) key).getValue());
+    }
+
+    /** @return the next row with the same key as row, or -1 */
+    public int next(int row) {
+        return nextChunks.get(row >>> CHUNK_SHIFT)[row & CHUNK_MASK];
+    }
+
+    /** @return the value of an INT_TYPE field of a row */
+    public int getInt(int row, int field) {
+        return intChunks.get(row >>> CHUNK_SHIFT)[(row & CHUNK_MASK) * numInts + column[field]];
+    }
+
+    /** @return the value of a STRING_TYPE field of a row */
+    public String getString(int row, int field) {
+        return stringChunks.get(row >>> CHUNK_SHIFT)[(row & CHUNK_MASK) * numStrings + column[field]];
+    }
+
+    /** @return a row as a new Tuple */
+    public Tuple getTuple(int row) {
+        Field[] fields = new Field[column.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                fields[i] = new IntField(getInt(row, i));
+            else
+                fields[i] = new StringField(getString(row, i), Type.STRING_LEN);
+        }
+        return new Tuple(td, fields);
+    }
+
+    /**
+     * Copy the fields of a row into the first fields of a row of a batch.
+     */
+    public void copyRow(int row, TupleBatch out, int outRow) {
+        int chunk = row >>> CHUNK_SHIFT, off = row & CHUNK_MASK;
+        for (int i = 0; i < column.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                out.ints(i)[outRow] = intChunks.get(chunk)[off * numInts + column[i]];
+            else
+                out.strings(i)[outRow] = stringChunks.get(chunk)[off * numStrings + column[i]];
+        }
+    }
+}
@@ -36,6 +36,13 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join algorithm is the one chosen by the optimizer (see
+     * {@link #bestJoinMethod}); joins that were not costed use nested loops.
+     * Hash joins run in parallel if the system property simpledb.joinThreads
+     * is set (see {@link ParallelHashEquiJoin}).
+     * A sort-merge join skips sorting children that are already sorted on
+     * their join field.
      * 
      * @param lj
      *            The join being considered
@@ -70,7 +77,26 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        LogicalJoinNode.Method m = lj.method;
+        if (lj instanceof LogicalSubplanJoinNode || m == null)
+            m = LogicalJoinNode.Method.NESTED_LOOPS;
+        switch (m) {
+        case HASH:
+            if (ParallelHashEquiJoin.THREADS > 1)
+                j = new ParallelHashEquiJoin(p, plan1, plan2, ParallelHashEquiJoin.THREADS);
+            else
+                j = new HashEquiJoin(p,plan1,plan2);
+            break;
+        case RADIX_HASH:
+            j = new RadixHashJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, SortMergeJoin.isSortedOn(plan1, t1id),
+                    plan2, SortMergeJoin.isSortedOn(plan2, t2id));
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -84,6 +110,9 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * If j has no join algorithm yet, this is the cost of the cheapest
+     * algorithm that can evaluate j (see {@link #bestJoinMethod}).
      * 
      * 
      * @param j
@@ -109,16 +138,90 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Project 3.
             return card1 + cost1 + cost2;
         } else {
-            // some code goes here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic nested-loops
-            // join.
-        	// Since a basic nested-loops join is used, use the function
-        	// joincost(t1 join t2) = scancost(t1) + ntups(t1)*scancost(t2) //I/O cost
-        	// + ntups(t1)*ntups(t2) //CPU cost
-        	double JoinCost = cost1 + card1*cost2 + card1*card2;
-            return JoinCost;
+            LogicalJoinNode.Method m = j.method;
+            if (m == null)
+                m = bestJoinMethod(j, card1, card2, cost1, cost2);
+            return estimateJoinCost(m, card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * Estimate the cost of a join evaluated with the specified algorithm;
+     * see {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}.
+     */
+    private static double estimateJoinCost(LogicalJoinNode.Method m,
+            int card1, int card2, double cost1, double cost2) {
+        switch (m) {
+        case HASH:
+            // every tuple is hashed once; the share of child1 beyond MAP_SIZE
+            // is spilled along with the matching share of child2, which
+            // is written and read back once. Once the tables in memory
+            // outgrow the cache, every insert and probe also misses it.
+            double spilled = card1 <= HashEquiJoin.MAP_SIZE ? 0
+                    : 1 - (double) HashEquiJoin.MAP_SIZE / card1;
+            double inMemory = Math.min(card1, HashEquiJoin.MAP_SIZE);
+            double misses = inMemory <= RadixHashJoin.CACHE_ROWS ? 0
+                    : CACHE_MISS_COST * (card1 + card2);
+            return cost1 + cost2 + 2*spilled*(cost1 + cost2) + card1 + card2 + misses;
+        case RADIX_HASH:
+            // both inputs are copied once per partitioning pass, then
+            // joined partition by partition within the cache
+            int passes = RadixHashJoin.passes(RadixHashJoin.radixBits(card1));
+            return cost1 + cost2 + (1 + passes) * ((double) card1 + card2);
+        case SORT_MERGE:
+            // sort both inputs, then merge them in one pass
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2;
+        default:
+            // joincost(t1 join t2) = scancost(t1) + ntups(t1)*scancost(t2) //I/O cost
+            // + ntups(t1)*ntups(t2) //CPU cost
+            return cost1 + (double) card1*cost2 + (double) card1*card2;
+        }
+    }
+
+    /**
+     * Cost of a cache miss relative to a predicate application, for hash
+     * tables that do not fit in the cache.
+     */
+    private static final double CACHE_MISS_COST = 4;
+
+    /** @return the number of comparisons needed to sort card tuples */
+    private static double sortCost(int card) {
+        return card < 2 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Choose the cheapest algorithm for a join: hash joins evaluate EQUALS,
+     * sort-merge joins EQUALS and inequalities, and nested loops any
+     * predicate. Radix hash joins are only considered when child1 is larger
+     * than the cache and both children fit in memory (see
+     * {@link RadixHashJoin}).
+     * 
+     * @param j
+     *            the join, with t1 as the left child
+     * @return the algorithm with the lowest estimated cost
+     */
+    public LogicalJoinNode.Method bestJoinMethod(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        LogicalJoinNode.Method best = LogicalJoinNode.Method.NESTED_LOOPS;
+        if (j instanceof LogicalSubplanJoinNode)
+            return best;
+        double bestCost = estimateJoinCost(best, card1, card2, cost1, cost2);
+        for (LogicalJoinNode.Method m : LogicalJoinNode.Method.values()) {
+            if (m == LogicalJoinNode.Method.HASH && j.p != Predicate.Op.EQUALS)
+                continue;
+            if (m == LogicalJoinNode.Method.RADIX_HASH && (j.p != Predicate.Op.EQUALS
+                    || card1 <= RadixHashJoin.CACHE_ROWS
+                    || (long) card1 + card2 > RadixHashJoin.MAX_ROWS))
+                continue;
+            if (m == LogicalJoinNode.Method.SORT_MERGE && !SortMergeJoin.supports(j.p))
+                continue;
+            double cost = estimateJoinCost(m, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = m;
+                bestCost = cost;
+            }
         }
+        return best;
     }
 
     /**
@@ -275,6 +378,10 @@ public class JoinOptimizer {
     	Set<LogicalJoinNode> joinSet = new HashSet<LogicalJoinNode>(joins);
     	return optjoin.getOrder(joinSet); */
     	
+        // a query over a single table has nothing to order
+        if (joins.isEmpty())
+            return joins;
+
         Set<LogicalJoinNode> joinSet = new HashSet<LogicalJoinNode>();
         joinSet.addAll(joins);                
         Set<Set<LogicalJoinNode>> j = enumerateSubsets(joins, 1);
@@ -443,17 +550,22 @@ public class JoinOptimizer {
 
         // case where prevbest is left
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        LogicalJoinNode.Method m1 = bestJoinMethod(j, t1card, t2card, t1cost, t2cost);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            m1 = bestJoinMethod(j2, t2card, t1card, t2cost, t1cost);
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
+        // record the algorithm on a copy: j is shared by other subplans
+        if (!(j instanceof LogicalSubplanJoinNode))
+            j = j.withMethod(m1);
         if (cost1 >= bestCostSoFar)
             return null;
 
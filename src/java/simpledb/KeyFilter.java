@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * KeyFilter summarizes the join values of the build side of a hash join,
+ * so that the probe side can drop tuples that cannot join before they
+ * reach the join. It is a Bloom filter over the values, plus their minimum
+ * and maximum for INT_TYPE values; like any Bloom filter it may let
+ * values through that do not occur, but never drops one that does.
+ * <p>
+ * Values are added with {@link #add}; once {@link #finish} has been
+ * called, the filter is read-only and may be shared between threads. It is
+ * pushed down to the scan below the probe side with {@link #pushDown}.
+ */
+public class KeyFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits of the Bloom filter per value. */
+    public static final int BITS_PER_KEY = 10;
+    /** Bits tested per value. */
+    private static final int NUM_HASHES = 3;
+
+    private int[] hashes = new int[64];  // hashes added, until finish()
+    private int size = 0;
+    private long[] bits;
+    private int mask;
+    private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    private boolean intKeys = true;
+
+    /** Add an INT_TYPE value. */
+    public void add(int key) {
+        if (key < min)
+            min = key;
+        if (key > max)
+            max = key;
+        addHash(key);
+    }
+
+    /** Add a STRING_TYPE value. */
+    public void add(String key) {
+        intKeys = false;
+        addHash(JoinHashTable.hash(key));
+    }
+
+    /** Add a value of either type. */
+    public void add(Field f) {
+        if (f instanceof IntField)
+            add(((IntField) f).getValue());
+        else
+            add(((StringField) f).getValue());
+    }
+
+    private void addHash(int h) {
+        if (bits != null)
+            throw new IllegalStateException("add(): KeyFilter is finished.");
+        if (size == hashes.length) {
+            int[] a = new int[size * 2];
+            System.arraycopy(hashes, 0, a, 0, size);
+            hashes = a;
+        }
+        hashes[size++] = h;
+    }
+
+    /** @return the number of values added */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Build the Bloom filter from the values added, sized at BITS_PER_KEY
+     * bits per value.
+     */
+    public void finish() {
+        if (bits != null)
+            return;
+        int m = 64;
+        while (m < size * BITS_PER_KEY && m < (1 << 30))
+            m <<= 1;
+        bits = new long[m >>> 6];
+        mask = m - 1;
+        for (int i = 0; i < size; i++) {
+            int h = hashes[i];
+            int a = mix1(h), b = mix2(h);
+            for (int j = 0; j < NUM_HASHES; j++) {
+                int pos = (a + j * b) & mask;
+                bits[pos >>> 6] |= 1L << pos;
+            }
+        }
+        hashes = null;
+    }
+
+    private static int mix1(int h) {
+        h *= 0xCC9E2D51;
+        return h ^ (h >>> 15);
+    }
+
+    private static int mix2(int h) {
+        h *= 0x1B873593;
+        return (h ^ (h >>> 13)) | 1;
+    }
+
+    private boolean test(int h) {
+        int a = mix1(h), b = mix2(h);
+        for (int j = 0; j < NUM_HASHES; j++) {
+            int pos = (a + j * b) & mask;
+            if ((bits[pos >>> 6] & (1L << pos)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return false if the INT_TYPE value was certainly not added */
+    public boolean mightContain(int key) {
+        return key >= min && key <= max && test(key);
+    }
+
+    /** @return false if the STRING_TYPE value was certainly not added */
+    public boolean mightContain(String key) {
+        return size > 0 && test(JoinHashTable.hash(key));
+    }
+
+    /** @return false if the value was certainly not added */
+    public boolean mightContain(Field f) {
+        if (f instanceof IntField)
+            return mightContain(((IntField) f).getValue());
+        return mightContain(((StringField) f).getValue());
+    }
+
+    /**
+     * Narrow the selection of a batch to the rows whose value of a field
+     * might have been added.
+     *
+     * @return the number of rows left
+     * @see Predicate#filter(TupleBatch)
+     */
+    public int filter(TupleBatch batch, int field) {
+        if (bits == null)
+            throw new IllegalStateException("filter(): KeyFilter is not finished.");
+        int n = batch.numRows();
+        int[] sel = batch.selection();
+        int m = 0;
+        if (batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE) {
+            int[] col = batch.ints(field);
+            for (int k = 0; k < n; k++) {
+                int r = batch.row(k);
+                int v = col[r];
+                if (v >= min && v <= max && test(v))
+                    sel[m++] = r;
+            }
+        } else {
+            String[] col = batch.strings(field);
+            for (int k = 0; k < n; k++) {
+                int r = batch.row(k);
+                if (mightContain(col[r]))
+                    sel[m++] = r;
+            }
+        }
+        batch.setSelection(m);
+        return m;
+    }
+
+    /**
+     * Attach a finished filter to the iterator that produces the tuples of
+     * it as early as possible: the SeqScan under any Filters, or the lowest
+     * Filter if its child is some other operator. Filters do not change the
+     * fields of their tuples, so field is the same for all of them.
+     *
+     * @param it the probe side of a join
+     * @param field the field of it the filter applies to
+     * @param f the filter, or null to remove a filter pushed down before
+     * @return false if it has no SeqScan or Filter to push the filter to
+     */
+    public static boolean pushDown(DbIterator it, int field, KeyFilter f) {
+        if (it instanceof SeqScan) {
+            ((SeqScan) it).setKeyFilter(field, f);
+            return true;
+        }
+        if (it instanceof Filter) {
+            Filter filter = (Filter) it;
+            if (!pushDown(filter.getChildren()[0], field, f))
+                filter.setKeyFilter(field, f);
+            return true;
+        }
+        return false;
+    }
+
+    public String toString() {
+        return "KeyFilter(" + size + " values"
+                + (intKeys && size > 0 ? ", " + min + ".." + max : "") + ")";
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT and OFFSET: it skips the first
+ * offset tuples of its child and returns at most limit of the tuples that
+ * follow. Once limit tuples have been returned, the child is not read any
+ * further.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private int limit, offset;
+
+    transient private int skipped = 0;   // tuples of child skipped so far
+    transient private int returned = 0;  // tuples returned so far
+    transient private TupleBatch buffer;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of tuples of child to skip first
+     * @param child
+     *            The child operator
+     * @throws IllegalArgumentException
+     *            if limit or offset is negative
+     */
+    public Limit(int limit, int offset, DbIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("Limit(): negative LIMIT or OFFSET.");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        skipped = returned = 0;
+        if (buffer == null)
+            buffer = new TupleBatch(child.getTupleDesc());
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        skipped = returned = 0;
+        discardBatch();
+    }
+
+    /**
+     * Returns the next batch of the child, with its selection narrowed to
+     * the rows after the offset and within the limit; no data is copied.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        while (returned < limit) {
+            TupleBatch batch = TupleBatch.next(child, buffer);
+            if (batch == null)
+                return null;
+            int n = batch.numRows();
+            int skip = Math.min(offset - skipped, n);
+            int take = Math.min(limit - returned, n - skip);
+            skipped += skip;
+            returned += take;
+            if (take == 0)
+                continue;
+            if (skip > 0 || take < n) {
+                int[] sel = batch.selection();
+                for (int k = 0; k < take; k++)
+                    sel[k] = batch.row(skip + k);
+                batch.setSelection(take);
+            }
+            return batch;
+        }
+        return null;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Skips the first offset tuples of
+     * the child, then returns its tuples until limit tuples were returned.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned >= limit)
+            return null;
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
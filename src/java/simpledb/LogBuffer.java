@@ -0,0 +1,252 @@
+package simpledb;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeSet;
+
+/**
+ * LogBuffer is the in-memory tail of the log. Log records are serialized
+ * into a ring of direct ByteBuffers without allocating, and the filled
+ * buffers are handed to the log's segment files (see {@link LogSegments})
+ * when the ring is full or the log has to be forced, in a single gathering
+ * write unless the data crosses into the next segment.
+ * <p>
+ * Positions in the log (LSNs) encode the segment and the offset within it,
+ * and count the bytes still in the buffer. Callers that need a record on
+ * disk before they proceed (e.g., write ahead logging in BufferPool) call
+ * {@link #force(long)} with the LSN of the record, which does no I/O if the
+ * record was already forced.
+ * <p>
+ * Not thread safe; LogFile serializes access to its buffer.
+ */
+public class LogBuffer implements DataOutput {
+
+    /** Bytes per buffer of the ring. */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Number of buffers in the ring. */
+    public static final int NUM_BUFFERS = 4;
+
+    private LogSegments segments;
+    // segments written to since the log was last forced
+    private final TreeSet<Long> unforced = new TreeSet<Long>();
+    private final ByteBuffer[] ring;
+    private int current = 0;    // index of the buffer being filled
+    private long pending = 0;   // bytes in the ring
+    private long writtenLsn;    // end of the data handed to the segments
+    private long durableLsn;    // end of the data forced to disk
+
+    /**
+     * Create a log buffer that appends to the specified segments.
+     *
+     * @param segments the segments of the log
+     * @param end the LSN at which to start appending
+     */
+    public LogBuffer(LogSegments segments, long end) {
+        ring = new ByteBuffer[NUM_BUFFERS];
+        for (int i = 0; i < ring.length; i++)
+            ring[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        reset(segments, end);
+    }
+
+    /**
+     * Drop any buffered data and continue appending at the specified LSN,
+     * e.g., after the log has been discarded or recovered.
+     */
+    public void reset(LogSegments segments, long end) {
+        this.segments = segments;
+        unforced.clear();
+        for (ByteBuffer b : ring)
+            b.clear();
+        current = 0;
+        pending = 0;
+        writtenLsn = end;
+        durableLsn = end;
+    }
+
+    /**
+     * @return the position the next record will be appended at (the LSN of
+     *   the next record)
+     */
+    public long position() {
+        return writtenLsn + pending;
+    }
+
+    /**
+     * @return the position up to which the log is forced to disk
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Hand the buffered data to the segments, without forcing it to disk.
+     * Must be called before the log is read.
+     */
+    public void write() throws IOException {
+        if (pending == 0)
+            return;
+        for (int i = 0; i <= current; i++)
+            ring[i].flip();
+        long seg = LogSegments.segment(writtenLsn);
+        if (seg == LogSegments.segment(writtenLsn + pending - 1)) {
+            FileChannel channel = segments.channel(seg);
+            channel.position(LogSegments.offset(writtenLsn));
+            long n = 0;
+            while (n < pending)
+                n += channel.write(ring, 0, current + 1);
+            unforced.add(seg);
+        } else {
+            // the data crosses a segment boundary
+            long lsn = writtenLsn;
+            for (int i = 0; i <= current; i++) {
+                ByteBuffer b = ring[i];
+                while (b.hasRemaining()) {
+                    long off = LogSegments.offset(lsn);
+                    int n = (int) Math.min(b.remaining(), LogSegments.SEGMENT_SIZE - off);
+                    int end = b.limit();
+                    b.limit(b.position() + n);
+                    FileChannel channel = segments.channel(LogSegments.segment(lsn));
+                    while (b.hasRemaining())
+                        off += channel.write(b, off);
+                    b.limit(end);
+                    unforced.add(LogSegments.segment(lsn));
+                    lsn += n;
+                }
+            }
+        }
+        for (ByteBuffer b : ring)
+            b.clear();
+        current = 0;
+        writtenLsn += pending;
+        pending = 0;
+    }
+
+    /**
+     * Write the buffered data and force the log to disk.
+     */
+    public void force() throws IOException {
+        write();
+        for (long seg : unforced)
+            segments.force(seg);
+        unforced.clear();
+        durableLsn = writtenLsn;
+    }
+
+    /**
+     * Make sure the record at the specified LSN is on disk, forcing the log
+     * only if it is not yet.
+     *
+     * @param lsn the LSN of a record
+     */
+    public void force(long lsn) throws IOException {
+        if (lsn >= durableLsn)
+            force();
+    }
+
+    /** @return a buffer with at least n bytes of room */
+    private ByteBuffer reserve(int n) throws IOException {
+        ByteBuffer b = ring[current];
+        if (b.remaining() < n) {
+            if (current == ring.length - 1)
+                write();
+            else
+                current++;
+            b = ring[current];
+        }
+        return b;
+    }
+
+    public void write(int b) throws IOException {
+        reserve(1).put((byte) b);
+        pending++;
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer buf = reserve(1);
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+            pending += n;
+        }
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        write(v ? 1 : 0);
+    }
+
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        reserve(2).putShort((short) v);
+        pending += 2;
+    }
+
+    public void writeChar(int v) throws IOException {
+        reserve(2).putChar((char) v);
+        pending += 2;
+    }
+
+    public void writeInt(int v) throws IOException {
+        reserve(4).putInt(v);
+        pending += 4;
+    }
+
+    public void writeLong(long v) throws IOException {
+        reserve(8).putLong(v);
+        pending += 8;
+    }
+
+    public void writeFloat(float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    public void writeDouble(double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    public void writeBytes(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    public void writeChars(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeChar(s.charAt(i));
+    }
+
+    /** Write a string in modified UTF-8, as {@link java.io.DataInput#readUTF} reads it. */
+    public void writeUTF(String s) throws IOException {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            len += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+        if (len > 65535)
+            throw new IOException("writeUTF(): string too long.");
+        writeShort(len);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                write(c);
+            } else if (c <= 0x07FF) {
+                write(0xC0 | ((c >> 6) & 0x1F));
+                write(0x80 | (c & 0x3F));
+            } else {
+                write(0xE0 | ((c >> 12) & 0x0F));
+                write(0x80 | ((c >> 6) & 0x3F));
+                write(0x80 | (c & 0x3F));
+            }
+        }
+    }
+}
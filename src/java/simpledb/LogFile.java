@@ -3,7 +3,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,33 +39,59 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in fixed-size segment files (see LogSegments);
+a log record's LSN encodes the segment it starts in and its offset
+within that segment, and a record may continue in the next segment.
+Truncating the log drops or recycles whole segments.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log file itself is a small control file.  Its first long
+integer is the LSN of the last written checkpoint, or -1 if there are
+no checkpoints, and its second long integer is the LSN of the first
+record of the log.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> The segments hold the log records.  Log records are variable
+length.  The log ends at the first record that cannot be read, or that
+does not end with its own LSN (preallocated and recycled segments hold
+zeroes or stale records past the end of the log).
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the long integer LSN of the previous record of the
+same transaction (-1 for its BEGIN record and for CHECKPOINT records),
+so the records of a transaction form a chain that rollback follows
+backwards.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
+
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+after image.  These images are serialized Page objects, tagged with
+the type id of their PageCodec, and can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods.  See LogFile.print() for an example.  An UPDATE record is
+written for the first change to a page after a checkpoint, so that
+recovery can repair a page that was torn by a crash while it was written.
+
+<li>DELTA RECORDS are written for later changes to a HeapPage.  They
+consist of the table id and page number of the page, the number of
+changed slots, and the size of a slot, followed for each changed slot
+by the slot number, a byte of flags (bit 0: slot used before, bit 1:
+slot used after) and the tuple bytes before and after the change.
+Applying them is idempotent, so they may be redone or undone any
+number of times.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record offset for each active transaction;
+then the long integer offset at which the checkpoint began, an integer
+count of dirty pages, and for each dirty page its table id, page number
+and (long integer) recovery LSN.  Redo starts at the smallest of the
+begin offset and the recovery LSNs.
 
 </ul>
 
@@ -74,7 +100,11 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    // control file holding the checkpoint pointer and the start of the log
+    private RandomAccessFile control;
+    private final LogSegments segments;
+    // in-memory tail of the log; records are appended here, never to segments
+    private final LogBuffer buffer;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +112,80 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_RECORD = -1;
+
+    /** Number of threads that replay redo records during recovery. */
+    static final int REDO_THREADS = 4;
+
+    /** Log growth (in bytes) since the last checkpoint that triggers a new one. */
+    public static final long CHECKPOINT_INTERVAL = 16 * 1024 * 1024;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    long startOffset = 0; // LSN of the first record in the log //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // LSN of the last record of each live transaction
+    HashMap<Long,Long> tidToLastLogRecord = new HashMap<Long,Long>();
+    // pages logged with full images since the last checkpoint
+    HashSet<PageId> imagedPages = new HashSet<PageId>(); //protected by this
+    // slots changed by the update being logged (see findChangedSlots)
+    private int[] changedSlots = new int[0]; //protected by this
+    long lastCheckpoint = 0; //protected by this
+
+    /** The slot changes of a DELTA record. */
+    static class SlotDelta {
+        HeapPageId pid;
+        int[] slots;
+        byte[] flags;
+        byte[][] before;
+        byte[][] after;
+    }
+
+    /** A log record, as read back by readRecord(). */
+    static class LogRecord {
+        long offset;
+        int type;
+        long tid;
+        long prev;        // previous record of the transaction
+        Page before;      // UPDATE records
+        Page after;       // UPDATE records
+        SlotDelta delta;  // DELTA records
+        HashMap<Long,Long> active; // CHECKPOINT records
+        HashMap<PageId,Long> dirty; // CHECKPOINT records
+        long redoLsn;               // CHECKPOINT records
+
+        /** @return the page changed by an UPDATE or DELTA record */
+        PageId pageId() {
+            return type == UPDATE_RECORD ? after.getId() : delta.pid;
+        }
+
+        public String toString() {
+            String name;
+            switch (type) {
+            case ABORT_RECORD: name = "ABORT"; break;
+            case COMMIT_RECORD: name = "COMMIT"; break;
+            case UPDATE_RECORD: name = "UPDATE " + describe(before.getId()); break;
+            case DELTA_RECORD: name = "DELTA " + describe(delta.pid) + " slots "
+                    + Arrays.toString(delta.slots); break;
+            case BEGIN_RECORD: name = "BEGIN"; break;
+            case CHECKPOINT_RECORD: name = "CHECKPOINT active " + active + " dirty pages "
+                    + dirty.size() + " redo from " + redoLsn; break;
+            default: name = "UNKNOWN(" + type + ")";
+            }
+            return offset + ": " + name + " tid " + tid + (prev == NO_RECORD ? "" : " prev " + prev);
+        }
+
+        private static String describe(PageId pid) {
+            return "table " + pid.getTableId() + " page " + pid.pageNumber();
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,7 +200,9 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f);
+        buffer = new LogBuffer(segments, 0);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +223,38 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.removeAll();
+            writeControl(NO_CHECKPOINT_ID, 0);
+            buffer.reset(segments, 0);
+            currentOffset = buffer.position();
+            lastCheckpoint = 0;
         }
     }
 
+    /** Update the control file and force it to disk.
+        @param cpOffset The LSN of the last checkpoint, or NO_CHECKPOINT_ID
+        @param start The LSN of the first record in the log
+    */
+    private void writeControl(long cpOffset, long start) throws IOException {
+        control.seek(0);
+        control.writeLong(cpOffset);
+        control.writeLong(start);
+        control.getChannel().force(true);
+        startOffset = start;
+    }
+
+    /** Write the start of a record of the specified transaction: its
+        type, the transaction id and the LSN of the transaction's
+        previous record.  The record being written (at currentOffset)
+        becomes the last record of the transaction.
+    */
+    private void writeHeader(int type, long tid) throws IOException {
+        Long prev = tidToLastLogRecord.put(tid, currentOffset);
+        buffer.writeInt(type);
+        buffer.writeLong(tid);
+        buffer.writeLong(prev == null ? NO_RECORD : prev);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,12 +278,12 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                writeHeader(ABORT_RECORD, tid.getId());
+                buffer.writeLong(currentOffset);
+                currentOffset = buffer.position();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLogRecord.remove(tid.getId());
             }
         }
     }
@@ -175,15 +295,16 @@ public class LogFile {
     */
     public synchronized void logCommit(TransactionId tid) throws IOException {
         preAppend();
-        Debug.log("COMMIT " + tid.getId());
+        if (Debug.isEnabled())
+            Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writeHeader(COMMIT_RECORD, tid.getId());
+        buffer.writeLong(currentOffset);
+        currentOffset = buffer.position();
         force();
         tidToFirstLogRecord.remove(tid.getId());
+        tidToLastLogRecord.remove(tid.getId());
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,107 +313,341 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the record, to be passed to {@link #force(long)}
+        before the page is written to disk
+
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
+        return logWrite(tid, after, before.getPageData(), after.getPageData());
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    /** Write an UPDATE (or DELTA) record for the specified tid and page,
+        given the serialized before and after images of the page (see
+        {@link Page#getPageData}), so that neither image has to be parsed
+        or serialized again.
+        @param tid The transaction performing the write
+        @param page The page, which gives the id and layout of the images
+        @param oldData The before image of the page
+        @param newData The after image of the page
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        @return The LSN of the record
+    */
+    public synchronized long logWrite(TransactionId tid, Page page,
+                                      byte[] oldData, byte[] newData)
+        throws IOException  {
+        if (Debug.isEnabled())
+            Debug.log("WRITE, offset = " + buffer.position());
+        preAppend();
+        long lsn = currentOffset;
+        int changed = -1;
+        // the first change to a page after a checkpoint logs full images
+        if (!imagedPages.add(page.getId()) && page instanceof HeapPage)
+            changed = findChangedSlots((HeapPage) page, oldData, newData);
+        if (changed < 0) {
+            /* update record conists of
+
+               record type
+               transaction id
+               previous record of the transaction
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            writeHeader(UPDATE_RECORD, tid.getId());
+
+            writePageData(buffer, page, oldData);
+            writePageData(buffer, page, newData);
+        } else {
+            /* delta record consists of
+
+               record type
+               transaction id
+               previous record of the transaction
+               slot changes (see writeDelta)
+               start offset
+            */
+            writeHeader(DELTA_RECORD, tid.getId());
+            writeDelta(buffer, (HeapPage) page, oldData, newData, changedSlots, changed);
+        }
+        buffer.writeLong(currentOffset);
+        currentOffset = buffer.position();
+
+        if (Debug.isEnabled())
+            Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        writePageData(raf, p, p.getPageData());
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Write page data in the format of writePageData, with the id and
+        type of page p and the specified data. */
+    void writePageData(DataOutput raf, Page p, byte[] pageData) throws IOException{
+        PageCodec codec = PageCodec.forPage(p);
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page type id (see PageCodec)
+        // page id (written by the codec)
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
+        raf.writeByte(codec.getTypeId());
+        codec.writeId(raf, p.getId());
         raf.writeInt(pageData.length);
         raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    Page readPageData(DataInput raf) throws IOException {
+        PageCodec codec = PageCodec.forType(raf.readByte());
+        if (codec == null)
+            throw new EOFException("invalid page type");
+        PageId pid = codec.readId(raf);
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        int pageSize = raf.readInt();
+        if (pageSize < 0 || pageSize > BufferPool.getPageSize())
+            throw new EOFException("invalid page size");
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData);
+        return codec.newPage(pid, pageData);
+    }
+
+    /**
+     * Find the slots that differ between two images of a HeapPage (see
+     * {@link HeapPage#getPageData}) in one pass, and store them in
+     * changedSlots. Gives up as soon as a DELTA record of the changed slots
+     * would be larger than full images of the page.
+     *
+     * @return the number of changed slots, or -1 if full images are smaller
+     */
+    int findChangedSlots(HeapPage p, byte[] oldData, byte[] newData) {
+        int size = p.getSlotSize();
+        int base = p.getSlotOffset(0);
+        int max = (oldData.length + newData.length - 1) / (2 * size + INT_SIZE + 1);
+        if (changedSlots.length < p.numSlots)
+            changedSlots = new int[p.numSlots];
+        int n = 0;
+        for (int i = 0, off = base; i < p.numSlots; i++, off += size) {
+            if (HeapPage.isSlotUsed(oldData, i) != HeapPage.isSlotUsed(newData, i)
+                || !rangeEquals(oldData, newData, off, size)) {
+                if (n == max)
+                    return -1;
+                changedSlots[n++] = i;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+        return n;
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /**
+     * Write the slots that differ between two images of a HeapPage, in the
+     * format of a DELTA record.
+     *
+     * @param slots the changed slots (see findChangedSlots)
+     * @param n the number of changed slots
+     */
+    void writeDelta(DataOutput out, HeapPage p, byte[] oldData, byte[] newData,
+                    int[] slots, int n)
+        throws IOException {
+        int size = p.getSlotSize();
+        int base = p.getSlotOffset(0);
+        out.writeInt(p.getId().getTableId());
+        out.writeInt(p.getId().pageNumber());
+        out.writeInt(n);
+        out.writeInt(size);
+        for (int k = 0; k < n; k++) {
+            int i = slots[k];
+            int off = base + i * size;
+            out.writeInt(i);
+            out.writeByte((HeapPage.isSlotUsed(oldData, i) ? 1 : 0)
+                          | (HeapPage.isSlotUsed(newData, i) ? 2 : 0));
+            out.write(oldData, off, size);
+            out.write(newData, off, size);
+        }
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    private static boolean rangeEquals(byte[] a, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            if (a[i] != b[i])
+                return false;
+        return true;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    SlotDelta readDelta(DataInput raf) throws IOException {
+        SlotDelta d = new SlotDelta();
+        int tableId = raf.readInt();
+        d.pid = new HeapPageId(tableId, raf.readInt());
+        int n = raf.readInt();
+        int size = raf.readInt();
+        if (n < 0 || size < 0 || (long) n * size > BufferPool.getPageSize())
+            throw new EOFException("invalid delta");
+        d.slots = new int[n];
+        d.flags = new byte[n];
+        d.before = new byte[n][size];
+        d.after = new byte[n][size];
+        for (int i = 0; i < n; i++) {
+            d.slots[i] = raf.readInt();
+            d.flags[i] = raf.readByte();
+            raf.readFully(d.before[i]);
+            raf.readFully(d.after[i]);
+        }
+        return d;
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /**
+     * Read the log record that starts at the current position of raf,
+     * including its trailing start offset.
+     *
+     * @throws EOFException if the log ends before the record does, or the
+     *   data at the current position is not a valid record
+     */
+    LogRecord readRecord(LogReader raf) throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = raf.getFilePointer();
+        r.type = raf.readInt();
+        if (r.type < ABORT_RECORD || r.type > DELTA_RECORD)
+            throw new EOFException("invalid record type " + r.type);
+        r.tid = raf.readLong();
+        r.prev = raf.readLong();
+        if (r.prev >= r.offset)
+            throw new EOFException("invalid record at " + r.offset);
+        switch (r.type) {
+        case UPDATE_RECORD:
+            r.before = readPageData(raf);
+            r.after = readPageData(raf);
+            break;
+        case DELTA_RECORD:
+            r.delta = readDelta(raf);
+            break;
+        case CHECKPOINT_RECORD:
+            r.active = new HashMap<Long,Long>();
+            int numXactions = raf.readInt();
+            if (numXactions < 0)
+                throw new EOFException("invalid checkpoint");
+            while (numXactions-- > 0) {
+                long xid = raf.readLong();
+                r.active.put(xid, raf.readLong());
+            }
+            r.redoLsn = raf.readLong();
+            r.dirty = new HashMap<PageId,Long>();
+            int numDirty = raf.readInt();
+            if (numDirty < 0)
+                throw new EOFException("invalid checkpoint");
+            while (numDirty-- > 0) {
+                int tableId = raf.readInt();
+                HeapPageId pid = new HeapPageId(tableId, raf.readInt());
+                long recLsn = raf.readLong();
+                r.dirty.put(pid, recLsn);
+                r.redoLsn = Math.min(r.redoLsn, recLsn);
+            }
+            break;
+        }
+        // stale data in a recycled segment ends with some other LSN
+        if (raf.readLong() != r.offset)
+            throw new EOFException("record at " + r.offset + " is not valid");
+        return r;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * @return true if the log ends cleanly at the specified LSN, i.e.,
+     *   nothing was written there: it holds a zero record type, or is past
+     *   the last segment. Otherwise the log ends at a torn record, or at
+     *   stale data of a recycled segment.
+     */
+    private boolean cleanEnd(long end) throws IOException {
+        try {
+            return new LogReader(segments, end, Long.MAX_VALUE).readInt() == 0;
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Redo or undo the change logged by an UPDATE or DELTA record, writing
+     * the result to disk. The caller must drop any cached copy of the page
+     * from the buffer pool. Records of different pages may be applied
+     * concurrently.
+     *
+     * @param r the record
+     * @param redo true to redo the change, false to undo it
+     * @return the page that was changed
+     */
+    PageId applyRecord(LogRecord r, boolean redo) throws IOException {
+        PageId pid;
+        if (r.type == UPDATE_RECORD) {
+            Page p = redo ? r.after : r.before;
+            pid = p.getId();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        } else {
+            SlotDelta d = r.delta;
+            pid = d.pid;
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            HeapPage p = (HeapPage) file.readPage(pid);
+            byte[] data = p.getPageData();
+            for (int i = 0; i < d.slots.length; i++) {
+                byte[] image = redo ? d.after[i] : d.before[i];
+                HeapPage.markSlotUsed(data, d.slots[i], (d.flags[i] & (redo ? 2 : 1)) != 0);
+                System.arraycopy(image, 0, data, p.getSlotOffset(d.slots[i]), image.length);
+            }
+            file.writePage(new HeapPage(d.pid, data));
+        }
+        return pid;
+    }
+
+    /**
+     * Redo the specified records using REDO_THREADS worker threads. Records
+     * are dispatched to the workers by page, so the records of each page
+     * are replayed in log order while different pages are replayed
+     * concurrently.
+     *
+     * @param records the records to redo, in log order
+     */
+    void parallelRedo(List<LogRecord> records) throws IOException {
+        final LogRecord done = new LogRecord(); // tells a worker to stop
+        final IOException[] failure = new IOException[1];
+        ArrayList<LinkedBlockingQueue<LogRecord>> queues =
+            new ArrayList<LinkedBlockingQueue<LogRecord>>();
+        Thread[] workers = new Thread[REDO_THREADS];
+        for (int i = 0; i < workers.length; i++) {
+            final LinkedBlockingQueue<LogRecord> queue = new LinkedBlockingQueue<LogRecord>();
+            queues.add(queue);
+            workers[i] = new Thread("redo-" + i) {
+                public void run() {
+                    try {
+                        for (LogRecord r = queue.take(); r != done; r = queue.take())
+                            applyRecord(r, true);
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    } catch (InterruptedException e) {
+                        // recovery is being abandoned
+                    }
+                }
+            };
+            workers[i].start();
         }
-        return newPage;
 
+        try {
+            for (LogRecord r : records) {
+                int worker = (r.pageId().hashCode() & Integer.MAX_VALUE) % workers.length;
+                queues.get(worker).put(r);
+            }
+            for (LinkedBlockingQueue<LogRecord> queue : queues)
+                queue.put(done);
+            for (Thread worker : workers)
+                worker.join();
+        } catch (InterruptedException e) {
+            for (Thread worker : workers)
+                worker.interrupt();
+            throw new InterruptedIOException("parallelRedo: interrupted");
+        }
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw failure[0];
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -301,156 +656,145 @@ public class LogFile {
     */
     public synchronized  void logXactionBegin(TransactionId tid)
         throws IOException {
-        Debug.log("BEGIN");
+        if (Debug.isEnabled())
+            Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        writeHeader(BEGIN_RECORD, tid.getId());
+        buffer.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.position();
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        if (Debug.isEnabled())
+            Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  Checkpoints
+        are fuzzy: instead of flushing the buffer pool, the checkpoint
+        records the dirty page table (the recovery LSN of every dirty
+        page) and recovery redoes the log from the smallest recovery
+        LSN.  The background writer (see
+        BufferPool#enableBackgroundWriter) moves that point forward by
+        writing dirty pages incrementally.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
+        long beginOffset;
+        synchronized (this) {
+            preAppend();
+            // changes logged from here on are redone from here
+            beginOffset = currentOffset;
+            // the next change to each page logs full images again
+            imagedPages.clear();
+        }
+        // the buffer pool is only locked while the table is copied
+        HashMap<PageId,Long> dirty = Database.getBufferPool().getDirtyPages();
+
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = buffer.position();
+            buffer.writeInt(CHECKPOINT_RECORD);
+            buffer.writeLong(-1); //no tid , but leave space for convenience
+            buffer.writeLong(NO_RECORD);
+
+            //write list of outstanding transactions
+            buffer.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                if (Debug.isEnabled())
                     Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+                buffer.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                buffer.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            buffer.writeLong(beginOffset);
+            buffer.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                buffer.writeInt(e.getKey().getTableId());
+                buffer.writeInt(e.getKey().pageNumber());
+                buffer.writeLong(e.getValue());
             }
+            buffer.writeLong(currentOffset);
+            currentOffset = buffer.position();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            buffer.force();
+            writeControl(startCpOffset, startOffset);
+            lastCheckpoint = startCpOffset;
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** Take a checkpoint if the log has grown by more than
+        CHECKPOINT_INTERVAL bytes since the last one.  Must be called
+        without holding the buffer pool or log locks, e.g., when a
+        transaction completes.
+    */
+    public void checkpointIfDue() throws IOException {
+        boolean due;
+        synchronized (this) {
+            due = !recoveryUndecided && currentOffset - lastCheckpoint > CHECKPOINT_INTERVAL;
+        }
+        if (due)
+            logCheckpoint();
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  The segments before the one holding the first
+        record that recovery or rollback may still need are dropped;
+        LSNs do not change.
+    */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        buffer.write();
+        control.seek(0);
+        long cpLoc = control.readLong();
 
-        long minLogRecord = cpLoc;
+        // without a checkpoint, recovery needs the whole log
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        long minLogRecord;
+        {
+            LogRecord cp = readRecord(new LogReader(segments, cpLoc, currentOffset));
 
-            if (cpType != CHECKPOINT_RECORD) {
+            if (cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+            // keep the records of the active transactions and the
+            // records that redo starts from
+            minLogRecord = Math.min(cpLoc, cp.redoLsn);
+            for (long firstLogRecord : cp.active.values()) {
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // transactions that began after the checkpoint need their records, too
+        for (long firstLogRecord : tidToFirstLogRecord.values())
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        if (minLogRecord <= startOffset)
+            return;
+
+        if (Debug.isEnabled())
+            Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+
+        // the control file must point past the dropped segments first
+        writeControl(cpLoc, minLogRecord);
+        segments.removeBefore(LogSegments.segment(minLogRecord),
+                              LogSegments.segment(currentOffset));
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,6 +811,21 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long last = tidToLastLogRecord.get(tid.getId());
+                if (last == null)
+                    throw new NoSuchElementException("rollback(): transaction " + tid.getId() + " is not live.");
+
+                // follow the transaction's chain of records backwards,
+                // undoing its changes newest first
+                buffer.write();
+                LogReader raf = new LogReader(segments, last, currentOffset);
+                for (long lsn = last; lsn != NO_RECORD; ) {
+                    raf.seek(lsn);
+                    LogRecord r = readRecord(raf);
+                    if (r.type == UPDATE_RECORD || r.type == DELTA_RECORD)
+                        Database.getBufferPool().discardPage(applyRecord(r, false));
+                    lsn = r.prev;
+                }
             }
         }
     }
@@ -475,10 +834,14 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                buffer.force();
+                segments.close();
+                control.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,6 +857,122 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (control.length() < 2 * LONG_SIZE) {
+                    segments.removeAll();
+                    writeControl(NO_CHECKPOINT_ID, 0);
+                    buffer.reset(segments, 0);
+                    currentOffset = buffer.position();
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                control.seek(0);
+                long cpOffset = control.readLong();
+                startOffset = control.readLong();
+                LogReader raf = new LogReader(segments, startOffset, Long.MAX_VALUE);
+
+                // analysis: find out how every transaction in the log ended
+                HashSet<Long> committed = new HashSet<Long>();
+                HashSet<Long> aborted = new HashSet<Long>();
+                LinkedHashSet<Long> seen = new LinkedHashSet<Long>();
+                ArrayList<LogRecord> changes = new ArrayList<LogRecord>();
+                HashMap<Long,Long> last = new HashMap<Long,Long>();
+                long redoLsn = 0;
+                long end = raf.getFilePointer();
+                while (true) {
+                    LogRecord r;
+                    try {
+                        r = readRecord(raf);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    end = raf.getFilePointer();
+                    if (r.type != CHECKPOINT_RECORD)
+                        last.put(r.tid, r.offset);
+                    switch (r.type) {
+                    case COMMIT_RECORD:
+                        committed.add(r.tid);
+                        break;
+                    case ABORT_RECORD:
+                        aborted.add(r.tid);
+                        break;
+                    case BEGIN_RECORD:
+                        seen.add(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        seen.add(r.tid);
+                        changes.add(r);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        seen.addAll(r.active.keySet());
+                        if (r.offset == cpOffset)
+                            redoLsn = r.redoLsn;
+                        break;
+                    }
+                }
+                // drop whatever follows a torn end of the log: a record
+                // torn by the crash, or writes that were never forced.
+                // Records past a torn one, up to the next segment, may
+                // still carry valid offsets, so they are zeroed before
+                // anything is appended. A clean end is followed by zeros,
+                // and the spare segments are kept
+                if (!cleanEnd(end)) {
+                    segments.clearFrom(end);
+                    long next = (LogSegments.segment(end) + 1) * LogSegments.SEGMENT_SIZE;
+                    segments.clearFrom(next);
+                }
+
+                long analyzed = System.currentTimeMillis();
+
+                // redo the committed changes from the smallest recovery LSN
+                // of the last checkpoint; earlier changes are on disk
+                ArrayList<LogRecord> redo = new ArrayList<LogRecord>();
+                HashSet<PageId> changed = new HashSet<PageId>();
+                for (LogRecord r : changes) {
+                    if (r.offset >= redoLsn && committed.contains(r.tid)) {
+                        redo.add(r);
+                        changed.add(r.pageId());
+                    }
+                }
+                parallelRedo(redo);
+                long redone = System.currentTimeMillis();
+
+                // undo the transactions that never finished, newest change
+                // first (aborted transactions were rolled back already)
+                seen.removeAll(committed);
+                seen.removeAll(aborted);
+                int undone = 0;
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    LogRecord r = changes.get(i);
+                    if (seen.contains(r.tid)) {
+                        changed.add(applyRecord(r, false));
+                        undone++;
+                    }
+                }
+                for (PageId pid : changed)
+                    Database.getBufferPool().discardPage(pid);
+                long finished = System.currentTimeMillis();
+                if (Debug.isEnabled())
+                    Debug.log("RECOVERY: analysis %d ms, redo of %d records %d ms, undo of %d records"
+                              + " from %d transactions %d ms, total %d ms", analyzed - start,
+                              redo.size(), redone - analyzed, undone, seen.size(),
+                              finished - redone, finished - start);
+
+                // log the losers as aborted so they are not undone again
+                buffer.reset(segments, end);
+                currentOffset = end;
+                tidToLastLogRecord.clear();
+                for (Long tid : seen) {
+                    if (last.containsKey(tid))
+                        tidToLastLogRecord.put(tid, last.get(tid));
+                    writeHeader(ABORT_RECORD, tid);
+                    buffer.writeLong(currentOffset);
+                    currentOffset = buffer.position();
+                }
+                force();
+                tidToFirstLogRecord.clear();
+                tidToLastLogRecord.clear();
+                lastCheckpoint = Math.max(cpOffset, 0);
             }
          }
     }
@@ -501,10 +980,38 @@ public class LogFile {
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
+        synchronized (this) {
+            buffer.write();
+            if (control.length() < 2 * LONG_SIZE) {
+                System.out.println("empty log");
+                return;
+            }
+            control.seek(0);
+            System.out.println("checkpoint at " + control.readLong());
+            long first = control.readLong();
+            long end = recoveryUndecided ? Long.MAX_VALUE : currentOffset;
+            LogReader raf = new LogReader(segments, first, end);
+            while (true) {
+                try {
+                    System.out.println(readRecord(raf));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        buffer.force();
+    }
+
+    /** Force the log to disk up to and including the record at the
+        specified LSN.  Does no I/O if that record is on disk already.
+
+        @param lsn The LSN of a record, as returned by logWrite
+    */
+    public synchronized void force(long lsn) throws IOException {
+        buffer.force(lsn);
     }
 
 }
@@ -0,0 +1,217 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogReader reads the log stored in {@link LogSegments} as one continuous
+ * stream of bytes, addressed by LSN, crossing from one segment into the
+ * next as needed. Reads are buffered, so the reader only sees log data
+ * that was handed to the segments before it was created (see
+ * {@link LogBuffer#write}).
+ * <p>
+ * Not thread safe.
+ */
+public class LogReader implements DataInput {
+
+    private static final int READ_SIZE = 64 * 1024;
+    // bytes past the target read along with a backwards seek
+    private static final int SEEK_AHEAD = 4 * 1024;
+
+    private final LogSegments segments;
+    private final long limit;
+    private final ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+    private long bufStart;   // LSN of the first byte in buf
+
+    /**
+     * Create a reader positioned at the specified LSN.
+     *
+     * @param segments the segments of the log
+     * @param lsn the LSN to start reading at
+     * @param limit the LSN at which the log ends; reading past it throws
+     *   EOFException
+     */
+    public LogReader(LogSegments segments, long lsn, long limit) {
+        this.segments = segments;
+        this.limit = limit;
+        bufStart = lsn;
+        buf.limit(0);
+    }
+
+    /**
+     * Move the reader to the specified LSN. Seeking within the data
+     * already read does no I/O. Seeking backwards reads the data before
+     * the LSN along with it, so walking back through the log (e.g.,
+     * following a transaction's chain of records) reads each stretch of
+     * the log once.
+     */
+    public void seek(long lsn) {
+        if (lsn >= bufStart && lsn < bufStart + buf.limit()) {
+            buf.position((int) (lsn - bufStart));
+            return;
+        }
+        boolean backwards = lsn < bufStart;
+        bufStart = lsn;
+        buf.clear();
+        buf.limit(0);
+        if (backwards) {
+            long segStart = lsn - LogSegments.offset(lsn);
+            long from = Math.max(segStart, lsn - READ_SIZE + SEEK_AHEAD);
+            try {
+                load(from);
+                if (lsn < bufStart + buf.limit()) {
+                    buf.position((int) (lsn - bufStart));
+                    return;
+                }
+            } catch (IOException e) {
+                // fall back to reading from lsn on demand
+            }
+            bufStart = lsn;
+            buf.clear();
+            buf.limit(0);
+        }
+    }
+
+    /** @return the LSN of the next byte to be read */
+    public long getFilePointer() {
+        return bufStart + buf.position();
+    }
+
+    /** Make at least one byte available in buf. */
+    private void fill() throws IOException {
+        if (buf.hasRemaining())
+            return;
+        long lsn = getFilePointer();
+        load(lsn);
+        if (!buf.hasRemaining())
+            throw new EOFException("end of log at " + lsn);
+    }
+
+    /** Fill buf with the log data from lsn on, up to the end of its segment. */
+    private void load(long lsn) throws IOException {
+        long seg = LogSegments.segment(lsn);
+        if (lsn >= limit || !segments.exists(seg))
+            throw new EOFException("end of log at " + lsn);
+        long off = LogSegments.offset(lsn);
+        buf.clear();
+        long n = Math.min(Math.min(READ_SIZE, LogSegments.SEGMENT_SIZE - off), limit - lsn);
+        buf.limit((int) n);
+        FileChannel channel = segments.channel(seg);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, off + buf.position()) < 0)
+                break;
+        }
+        buf.flip();
+        bufStart = lsn;
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            fill();
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    public int skipBytes(int n) throws IOException {
+        int skipped = 0;
+        while (skipped < n) {
+            fill();
+            int k = Math.min(n - skipped, buf.remaining());
+            buf.position(buf.position() + k);
+            skipped += k;
+        }
+        return skipped;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        fill();
+        return buf.get();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+        return (short) ((readUnsignedByte() << 8) | readUnsignedByte());
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        if (buf.remaining() >= 4)
+            return buf.getInt();
+        return (readUnsignedShort() << 16) | readUnsignedShort();
+    }
+
+    public long readLong() throws IOException {
+        if (buf.remaining() >= 8)
+            return buf.getLong();
+        return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    /**
+     * Read bytes up to the end of a line ("\n", "\r" or "\r\n"), as
+     * {@link java.io.RandomAccessFile#readLine} does: each byte becomes one
+     * char.
+     *
+     * @return the line, without its terminator, or null at the end of the log
+     */
+    public String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int c;
+            try {
+                c = readUnsignedByte();
+            } catch (EOFException e) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (c == '\n')
+                return line.toString();
+            if (c == '\r') {
+                long lsn = getFilePointer();
+                try {
+                    if (readUnsignedByte() != '\n')
+                        seek(lsn);
+                } catch (EOFException e) {
+                    // the log ends with the line
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files.
+ * Segment n holds the log bytes from n * SEGMENT_SIZE up to (but not
+ * including) (n + 1) * SEGMENT_SIZE, so an LSN encodes both the segment a
+ * record lives in and its offset within that segment; records may span
+ * the boundary between two segments.
+ * <p>
+ * Segments are created at their full size and filled with zeros once, so
+ * appending to the log never grows a file or fills a hole in a sparse one. When the start of the log is truncated, whole segments are
+ * dropped; up to MAX_RECYCLED of them are renamed to become the next
+ * segments to be written instead of being deleted, so their space does
+ * not have to be allocated again.
+ * <p>
+ * Segment n of a log backed by file "log" is stored in "log.n", with n
+ * written as 8 hex digits.
+ * <p>
+ * Not thread safe; LogFile serializes access to its segments.
+ */
+public class LogSegments {
+
+    /** Bytes per segment file. */
+    public static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Number of dropped segments kept around for reuse. */
+    public static final int MAX_RECYCLED = 2;
+
+    private final File base;
+    // open segment files, by segment number
+    private final TreeMap<Long, RandomAccessFile> open = new TreeMap<Long, RandomAccessFile>();
+
+    /**
+     * @param base the file whose name the segment file names extend
+     */
+    public LogSegments(File base) {
+        this.base = base;
+    }
+
+    /** @return the segment holding the byte at the specified LSN */
+    public static long segment(long lsn) {
+        return lsn / SEGMENT_SIZE;
+    }
+
+    /** @return the offset of the specified LSN within its segment */
+    public static long offset(long lsn) {
+        return lsn % SEGMENT_SIZE;
+    }
+
+    private File file(long n) {
+        return new File(base.getPath() + "." + String.format("%08x", n));
+    }
+
+    /** @return true if segment n exists on disk */
+    public boolean exists(long n) {
+        return open.containsKey(n) || file(n).exists();
+    }
+
+    /**
+     * Return the channel of segment n, creating the segment at its full
+     * size, filled with zeros, if it does not exist yet.
+     */
+    public FileChannel channel(long n) throws IOException {
+        RandomAccessFile raf = open.get(n);
+        if (raf == null) {
+            raf = new RandomAccessFile(file(n), "rw");
+            if (raf.length() < SEGMENT_SIZE) {
+                zero(raf.getChannel(), raf.length());
+                raf.getChannel().force(true);
+            }
+            open.put(n, raf);
+        }
+        return raf.getChannel();
+    }
+
+    /** Write zeros to a segment from the specified offset to its end. */
+    private static void zero(FileChannel channel, long from) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        for (long off = from; off < SEGMENT_SIZE; ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), SEGMENT_SIZE - off));
+            off += channel.write(zeros, off);
+        }
+    }
+
+    /**
+     * Force the data written to segment n to disk. Segments never change
+     * size after they are created, so file metadata need not be forced.
+     */
+    public void force(long n) throws IOException {
+        RandomAccessFile raf = open.get(n);
+        if (raf != null)
+            raf.getChannel().force(false);
+    }
+
+    /** @return the numbers of the segments on disk, in ascending order */
+    private long[] list() {
+        final String prefix = base.getName() + ".";
+        File dir = base.getAbsoluteFile().getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null)
+            return new long[0];
+        long[] found = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || name.length() != prefix.length() + 8)
+                continue;
+            try {
+                long n = Long.parseLong(name.substring(prefix.length()), 16);
+                found[count++] = n;
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        long[] segments = new long[count];
+        System.arraycopy(found, 0, segments, 0, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private void close(long n) throws IOException {
+        RandomAccessFile raf = open.remove(n);
+        if (raf != null)
+            raf.close();
+    }
+
+    /**
+     * Drop the segments below segment n. Until MAX_RECYCLED segments
+     * follow the segment being written, dropped segments are renamed to
+     * follow the last segment on disk; the rest are deleted.
+     *
+     * @param n the first segment to keep
+     * @param current the segment being written
+     */
+    public void removeBefore(long n, long current) throws IOException {
+        long[] segments = list();
+        if (segments.length == 0)
+            return;
+        long next = segments[segments.length - 1] + 1;
+        int spare = 0;
+        for (long s : segments)
+            if (s > current)
+                spare++;
+        for (long s : segments) {
+            if (s >= n)
+                break;
+            close(s);
+            if (spare < MAX_RECYCLED && file(s).renameTo(file(next))) {
+                next++;
+                spare++;
+            } else if (!file(s).delete()) {
+                throw new IOException("removeBefore(): cannot delete " + file(s));
+            }
+        }
+    }
+
+    /**
+     * Delete the segments after segment n, e.g., segments holding data
+     * past the end of the log after a crash.
+     */
+    public void removeAfter(long n) throws IOException {
+        for (long s : list()) {
+            if (s > n) {
+                close(s);
+                file(s).delete();
+            }
+        }
+    }
+
+    /**
+     * Overwrite the log from the specified LSN to the end of its segment
+     * with zeros, and force them to disk, so that records left there by
+     * an earlier life of the log can never be read back as valid ones once
+     * new records are appended before them.
+     *
+     * @param lsn the LSN to clear from
+     */
+    public void clearFrom(long lsn) throws IOException {
+        long n = segment(lsn);
+        if (!exists(n))
+            return;
+        FileChannel channel = channel(n);
+        zero(channel, offset(lsn));
+        channel.force(false);
+    }
+
+    /** Delete all segments. */
+    public void removeAll() throws IOException {
+        removeAfter(-1);
+    }
+
+    /** Close all open segment files. */
+    public void close() throws IOException {
+        while (!open.isEmpty())
+            close(open.firstKey());
+    }
+}
@@ -23,6 +23,14 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The algorithms a join can be instantiated with. */
+    public enum Method {
+        NESTED_LOOPS, HASH, RADIX_HASH, SORT_MERGE;
+    }
+
+    /** The algorithm chosen for this join, or null if none was chosen. */
+    public Method method;
+
     public LogicalJoinNode() {
     }
 
@@ -62,6 +70,15 @@ public class LogicalJoinNode {
         LogicalJoinNode j2 = new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
         return j2;
     }
+
+    /** Return a copy of this LogicalJoinNode that uses the specified
+     * algorithm. The node itself is not changed, since the optimizer
+     * considers it in many subplans. */
+    public LogicalJoinNode withMethod(Method m) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.method = m;
+        return j2;
+    }
     
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
@@ -69,7 +86,7 @@ public class LogicalJoinNode {
     }
     
     @Override public String toString() {
-        return t1Alias + ":" + t2Alias ;//+ ";" + f1 + " " + p + " " + f2;
+        return t1Alias + ":" + t2Alias + (method == null ? "" : "(" + method + ")");//+ ";" + f1 + " " + p + " " + f2;
     }
     
     @Override public int hashCode() {
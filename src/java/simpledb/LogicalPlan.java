@@ -33,8 +33,10 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = -1, offset = 0;  // no LIMIT if limit < 0
     private String query;
 //    private Query owner;
 
@@ -203,19 +205,35 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  If it is called
+        several times, the result is ordered on the fields in the order they were added.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAsc.add(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT (and OFFSET) clause: return at most limit tuples of the
+        result, after skipping the first offset ones.  With an ORDER BY, only
+        the first offset + limit tuples are kept while sorting, if they fit
+        in the memory of an in-memory {@link OrderBy}; otherwise the result
+        is sorted externally.
+        @param limit the maximum number of tuples to return
+        @param offset the number of tuples to skip first
+     * @throws ParsingException if limit or offset is negative
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -475,7 +493,22 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[fields.length];
+            for (int k = 0; k < fields.length; k++) {
+                fields[k] = node.getTupleDesc().fieldNameToIndex(oByFields.get(k));
+                asc[k] = oByAsc.get(k);
+            }
+            // TopN keeps limit + offset tuples in memory; past what OrderBy
+            // sorts in memory, sort externally and let Limit skip them
+            if (limit >= 0 && OrderBy.fitsInMemory(node.getTupleDesc(), fields, (long) limit + offset)) {
+                node = new TopN(fields, asc, limit + offset, node);
+            } else {
+                node = new OrderBy(fields, asc, node);
+            }
+        }
+        if (limit >= 0) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
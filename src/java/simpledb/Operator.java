@@ -6,8 +6,14 @@ import java.util.NoSuchElementException;
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
  * <code>open</code> and <code>readNext</code>.
+ * <p>
+ * Operators also produce batches (see {@link BatchIterator}); by default,
+ * nextBatch() collects the tuples returned by fetchNext. Operators that
+ * process batches natively override nextBatch() instead, and either pass
+ * the tuples of their children through in fetchNext (e.g., Filter), or,
+ * if they build new rows anyway, implement it with {@link #fetchFromBatch}.
  */
-public abstract class Operator implements DbIterator {
+public abstract class Operator implements DbIterator, BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -44,6 +50,47 @@ public abstract class Operator implements DbIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    /**
+     * Returns the next batch of tuples. The default implementation fills
+     * a batch with the tuples returned by fetchNext.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        if (outBatch == null)
+            outBatch = new TupleBatch(getTupleDesc());
+        outBatch.clear();
+        while (!outBatch.isFull() && hasNext())
+            outBatch.add(next());
+        return outBatch.numRows() == 0 ? null : outBatch;
+    }
+
+    /**
+     * Implements fetchNext for operators that override nextBatch(), by
+     * returning the rows of their batches one at a time. Every row is
+     * copied into a new Tuple.
+     *
+     * @return the next Tuple, or null if the iteration is finished.
+     */
+    protected Tuple fetchFromBatch() throws DbException, TransactionAbortedException {
+        while (inBatch == null || inRow >= inBatch.numRows()) {
+            inBatch = nextBatch();
+            inRow = 0;
+            if (inBatch == null)
+                return null;
+        }
+        return inBatch.toTuple(inBatch.row(inRow++));
+    }
+
+    /**
+     * Drops the batch being returned by fetchFromBatch, e.g., when the
+     * operator is rewound.
+     */
+    protected void discardBatch() {
+        next = null;
+        inBatch = null;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -51,11 +98,15 @@ public abstract class Operator implements DbIterator {
     public void close() {
         // Ensures that a future call to next() will fail
         next = null;
+        inBatch = null;
         this.open = false;
     }
 
     private Tuple next = null;
     private boolean open = false;
+    private transient TupleBatch outBatch = null;  // built by nextBatch()
+    private transient TupleBatch inBatch = null;   // read by fetchFromBatch()
+    private transient int inRow = 0;
     private int estimatedCardinality = 0;
 
     public void open() throws DbException, TransactionAbortedException {
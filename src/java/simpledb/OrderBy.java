@@ -3,18 +3,42 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields, each in ascending or descending order. Every tuple is
+ * encoded into a normalized {@link SortKey} once, and the sort compares
+ * those keys.
+ * <p>
+ * Inputs whose estimated size is up to MAX_BYTES are sorted in memory.
+ * Larger inputs are sorted externally: the tuples are sorted into runs of
+ * about MAX_BYTES each that are written to {@link SpillFile}s, consecutive
+ * runs are merged MERGE_FANIN at a time until at most MERGE_FANIN remain,
+ * and the output is streamed from a final k-way merge of the remaining runs
+ * and the last, in-memory one. The size of a run is estimated from the
+ * TupleDesc of its tuples, the length of their sort keys and the overhead
+ * of their objects (see {@link #fitsInMemory}), so about MAX_BYTES of heap
+ * are used, plus the read buffers of the runs being merged, whatever the
+ * size of the input or of its tuples.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Maximum estimated size, in bytes, of the tuples sorted in memory at once. */
+    public static final long MAX_BYTES = 16 * 1024 * 1024;
+
+    /** Maximum number of runs merged at once. */
+    public static final int MERGE_FANIN = 64;
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] asc;
+
+    transient private SortKey sortKey;
+    transient private ArrayList<Keyed> childTups;  // the last run, in memory
+    transient private ArrayList<SpillFile> runs;   // sorted runs on disk
+    transient private Iterator<Keyed> it;          // if no run was spilled
+    transient private Merge merge;                 // otherwise
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,28 +51,84 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException
+     *            if there are no fields, or orderbyFields and asc differ in
+     *            length
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException(
+                    "OrderBy(): one sort order per field is required.");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
     }
     
+    /** @return true if the first field is sorted in ascending order */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
+    /** @return the first field sorted on */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields.clone();
+    }
+
+    /** @return for each field sorted on, true if its order is ascending */
+    public boolean[] getAscending()
+    {
+        return this.asc.clone();
     }
     
+    /**
+     * @return the estimated heap size of a tuple of td held in memory by a
+     *         sort, excluding the bytes of its sort key: the Tuple, its Field
+     *         objects and their values, the array holding them, and the
+     *         entry and key array the sort adds
+     */
+    private static long entryBytes(TupleDesc td) {
+        return 88 + 16L * td.numFields() + td.getSize();
+    }
+
+    /**
+     * @param td the TupleDesc of the tuples
+     * @param fields the fields sorted on
+     * @param n a number of tuples
+     * @return true if n tuples of td, with their sort keys, are estimated to
+     *         fit in MAX_BYTES, so that they can be sorted, or kept by a
+     *         {@link TopN}, in memory
+     */
+    public static boolean fitsInMemory(TupleDesc td, int[] fields, long n) {
+        return n * (entryBytes(td) + SortKey.maxLength(td, fields)) <= MAX_BYTES;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,21 +136,126 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sortKey = new SortKey(td, orderByFields, asc);
+        childTups = new ArrayList<Keyed>();
+        runs = new ArrayList<SpillFile>();
+        long tupleBytes = entryBytes(td), runBytes = 0;
+        boolean sorted = false;
+        try {
+            // load the tuples in runs of about MAX_BYTES, and sort them
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                byte[] key = sortKey.encode(t);
+                childTups.add(new Keyed(key, t));
+                runBytes += tupleBytes + key.length;
+                if (runBytes >= MAX_BYTES && child.hasNext()) {
+                    spillRun();
+                    runBytes = 0;
+                }
+            }
+            Collections.sort(childTups);
+            if (runs.isEmpty()) {
+                it = childTups.iterator();
+            } else {
+                while (runs.size() + 1 > MERGE_FANIN)
+                    mergeRuns();
+                ArrayList<Run> inputs = new ArrayList<Run>();
+                for (SpillFile run : runs)
+                    inputs.add(new RunReader(run));
+                inputs.add(new ListRun(childTups));
+                merge = new Merge(inputs);
+                merge.open();
+            }
+            sorted = true;
+        } finally {
+            if (!sorted)
+                deleteRuns();
+        }
         super.open();
     }
 
+    /** Sort the tuples in memory and write them to a new run. */
+    private void spillRun() throws DbException {
+        Collections.sort(childTups);
+        SpillFile run = new SpillFile(td);
+        runs.add(run);
+        for (Keyed k : childTups)
+            run.add(k.t);
+        run.finish();
+        childTups.clear();
+    }
+
+    /**
+     * Merge each group of MERGE_FANIN consecutive runs into one run. Runs
+     * stay in the order of the input, so ties are still broken by it.
+     */
+    private void mergeRuns() throws DbException, TransactionAbortedException {
+        ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+        boolean done = false;
+        try {
+            for (int i = 0; i < runs.size(); i += MERGE_FANIN) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + MERGE_FANIN, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                ArrayList<Run> inputs = new ArrayList<Run>();
+                for (SpillFile f : group)
+                    inputs.add(new RunReader(f));
+                SpillFile run = new SpillFile(td);
+                merged.add(run);
+                Merge m = new Merge(inputs);
+                try {
+                    m.open();
+                    Keyed k;
+                    while ((k = m.next()) != null)
+                        run.add(k.t);
+                } finally {
+                    m.close();
+                }
+                run.finish();
+                for (SpillFile f : group)
+                    f.delete();
+            }
+            done = true;
+        } finally {
+            // if a merge failed, delete the runs it wrote; the others are
+            // still in runs
+            if (!done)
+                for (SpillFile f : merged)
+                    if (!runs.contains(f))
+                        f.delete();
+        }
+        runs = merged;
+    }
+
+    /** Close the final merge and delete all runs on disk. */
+    private void deleteRuns() {
+        if (merge != null)
+            merge.close();
+        if (runs != null)
+            for (SpillFile run : runs)
+                run.delete();
+        runs = null;
+        merge = null;
+    }
+
     public void close() {
         super.close();
+        child.close();
+        deleteRuns();
+        childTups = null;
         it = null;
+        sortKey = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (merge != null) {
+            merge.close();
+            merge.open();
+        } else {
+            it = childTups.iterator();
+        }
     }
 
     /**
@@ -82,12 +267,144 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null) {
+            Keyed k = merge.next();
+            return k == null ? null : k.t;
+        }
         if (it != null && it.hasNext()) {
-            return it.next();
+            return it.next().t;
         } else
             return null;
     }
 
+    /** A tuple and its sort key. */
+    private static class Keyed implements Comparable<Keyed> {
+        final byte[] key;
+        final Tuple t;
+
+        Keyed(byte[] key, Tuple t) {
+            this.key = key;
+            this.t = t;
+        }
+
+        public int compareTo(Keyed o) {
+            return SortKey.compare(key, o.key);
+        }
+    }
+
+    /** A sorted input of a merge. */
+    private interface Run {
+        void open() throws DbException, TransactionAbortedException;
+
+        /** @return the next tuple and its key, or null at the end */
+        Keyed next() throws DbException, TransactionAbortedException;
+
+        void close();
+    }
+
+    /** A run on disk; keys are encoded again as its tuples are read. */
+    private class RunReader implements Run {
+        private final DbIterator in;
+
+        RunReader(SpillFile run) {
+            in = run.iterator();
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            in.open();
+        }
+
+        public Keyed next() throws DbException, TransactionAbortedException {
+            if (!in.hasNext())
+                return null;
+            Tuple t = in.next();
+            return new Keyed(sortKey.encode(t), t);
+        }
+
+        public void close() {
+            in.close();
+        }
+    }
+
+    /** The last run, which is kept in memory. */
+    private static class ListRun implements Run {
+        private final ArrayList<Keyed> tuples;
+        private int pos;
+
+        ListRun(ArrayList<Keyed> tuples) {
+            this.tuples = tuples;
+        }
+
+        public void open() {
+            pos = 0;
+        }
+
+        public Keyed next() {
+            return pos < tuples.size() ? tuples.get(pos++) : null;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * A k-way merge of sorted runs, with a heap of the next tuple of each
+     * run. Tuples with equal keys are returned in the order of their runs,
+     * so merging the runs of a stable sort is stable.
+     */
+    private static class Merge {
+        private final ArrayList<Run> inputs;
+        private PriorityQueue<Head> heap;
+
+        /** The next tuple of a run. */
+        private static class Head implements Comparable<Head> {
+            final Keyed k;
+            final int input;
+
+            Head(Keyed k, int input) {
+                this.k = k;
+                this.input = input;
+            }
+
+            public int compareTo(Head o) {
+                int c = k.compareTo(o.k);
+                return c != 0 ? c : input - o.input;
+            }
+        }
+
+        Merge(ArrayList<Run> inputs) {
+            this.inputs = inputs;
+        }
+
+        void open() throws DbException, TransactionAbortedException {
+            heap = new PriorityQueue<Head>(Math.max(1, inputs.size()));
+            for (int i = 0; i < inputs.size(); i++) {
+                Run in = inputs.get(i);
+                in.open();
+                Keyed k = in.next();
+                if (k != null)
+                    heap.add(new Head(k, i));
+            }
+        }
+
+        /** @return the next tuple, or null if all runs are exhausted */
+        Keyed next() throws DbException, TransactionAbortedException {
+            Head h = heap.poll();
+            if (h == null)
+                return null;
+            Keyed k = inputs.get(h.input).next();
+            if (k != null)
+                heap.add(new Head(k, h.input));
+            return h.k;
+        }
+
+        void close() {
+            for (Run in : inputs)
+                in.close();
+            heap = null;
+        }
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -99,25 +416,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -7,8 +7,9 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, every Page class MUST have a PageCodec registered
+ * (see {@link PageCodec#register}), which the log uses to write and read
+ * its pages.
  */
 public interface Page {
 
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * PageCodec serializes one kind of Page and its PageId for the log.
+ * Every codec has a small integer type id, which log records store in
+ * place of class names, so reading a page back needs neither reflection
+ * nor string comparisons.
+ * <p>
+ * Codecs are kept in a static registry; HeapPage is registered with type
+ * id {@link #HEAP_PAGE}. Other Page implementations must register a codec
+ * before their pages are logged.
+ *
+ * @see LogFile#writePageData
+ * @see LogFile#readPageData
+ */
+public abstract class PageCodec {
+
+    /** Type id of HeapPage. */
+    public static final int HEAP_PAGE = 1;
+
+    /** Type ids are stored in a byte. */
+    public static final int MAX_TYPE_ID = 127;
+
+    private static final PageCodec[] byType = new PageCodec[MAX_TYPE_ID + 1];
+    private static final HashMap<Class<?>, PageCodec> byClass = new HashMap<Class<?>, PageCodec>();
+
+    private final int typeId;
+
+    /**
+     * @param typeId the type id of the pages this codec serializes
+     */
+    protected PageCodec(int typeId) {
+        if (typeId <= 0 || typeId > MAX_TYPE_ID)
+            throw new IllegalArgumentException("PageCodec(): invalid type id " + typeId + ".");
+        this.typeId = typeId;
+    }
+
+    /** @return the type id stored in log records for pages of this codec */
+    public int getTypeId() {
+        return typeId;
+    }
+
+    /** Write the id of a page. */
+    public abstract void writeId(DataOutput out, PageId pid) throws IOException;
+
+    /** Read a page id written by {@link #writeId}. */
+    public abstract PageId readId(DataInput in) throws IOException;
+
+    /**
+     * Create a page from its id and the bytes returned by
+     * {@link Page#getPageData}.
+     */
+    public abstract Page newPage(PageId pid, byte[] data) throws IOException;
+
+    /**
+     * Register a codec for the specified page class.
+     *
+     * @throws IllegalArgumentException if the type id or the class already
+     *   has a codec
+     */
+    public static synchronized void register(Class<? extends Page> pageClass, PageCodec codec) {
+        if (byType[codec.typeId] != null || byClass.containsKey(pageClass))
+            throw new IllegalArgumentException("register(): " + pageClass.getName()
+                    + " or type id " + codec.typeId + " is already registered.");
+        byType[codec.typeId] = codec;
+        byClass.put(pageClass, codec);
+    }
+
+    /**
+     * @return the codec for the specified page
+     * @throws IllegalArgumentException if its class has no codec
+     */
+    public static synchronized PageCodec forPage(Page p) {
+        PageCodec codec = byClass.get(p.getClass());
+        if (codec == null)
+            throw new IllegalArgumentException("forPage(): no codec for "
+                    + p.getClass().getName() + ".");
+        return codec;
+    }
+
+    /**
+     * @return the codec with the specified type id, or null if there is none
+     */
+    public static synchronized PageCodec forType(int typeId) {
+        return typeId >= 0 && typeId <= MAX_TYPE_ID ? byType[typeId] : null;
+    }
+
+    static {
+        register(HeapPage.class, new PageCodec(HEAP_PAGE) {
+            public void writeId(DataOutput out, PageId pid) throws IOException {
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.pageNumber());
+            }
+
+            public PageId readId(DataInput in) throws IOException {
+                int tableId = in.readInt();
+                return new HeapPageId(tableId, in.readInt());
+            }
+
+            public Page newPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+package simpledb;
+
+/**
+ * A PageHandle is a pinned reference to a page in the BufferPool, as
+ * returned by {@link BufferPool#pinPage}. While the handle is pinned the
+ * buffer pool will not evict the page, so the page contents may be read in
+ * place. Each handle must be unpinned exactly once.
+ */
+public class PageHandle {
+
+    private final BufferPool pool;
+    private final BufferPool.Frame frame;
+    private final Page page;
+    private boolean pinned;
+
+    PageHandle(BufferPool pool, BufferPool.Frame frame, Page page) {
+        this.pool = pool;
+        this.frame = frame;
+        this.page = page;
+        this.pinned = true;
+    }
+
+    /**
+     * @return the pinned page
+     * @throws IllegalStateException if the handle was already unpinned
+     */
+    public Page getPage() {
+        if (!pinned)
+            throw new IllegalStateException("getPage(): page already unpinned.");
+        return page;
+    }
+
+    /**
+     * @return the id of the pinned page
+     */
+    public PageId getId() {
+        return page.getId();
+    }
+
+    /**
+     * Release the pin on the frame that was pinned. Calling unpin more than
+     * once has no effect.
+     */
+    public void unpin() {
+        if (pinned) {
+            pinned = false;
+            pool.unpinPage(frame);
+        }
+    }
+}
@@ -4,10 +4,11 @@ package simpledb;
 public interface PageId {
 
     /** Return a representation of this page id object as a collection of
-        integers (used for logging)
+        integers
 
         This class MUST have a constructor that accepts n integer parameters,
         where n is the number of integers returned in the array from serialize.
+        (The log writes page ids with a PageCodec instead.)
     */
     public int[] serialize();
 
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+/**
+ * PageTable is a hash map from primitive long keys (packed page ids, see
+ * {@link HeapPageId#toLong}) to values. It uses open addressing with linear
+ * probing over parallel arrays, so lookups neither box the key nor allocate.
+ * <p>
+ * Not thread safe; the BufferPool guards its page table with its own lock.
+ *
+ * @param <V> the type of the values
+ */
+public class PageTable<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;   // null marks an empty slot
+    private int size = 0;
+    private int mask;
+
+    /**
+     * Create a page table sized to hold the specified number of entries
+     * without growing.
+     *
+     * @param expected the expected number of entries
+     */
+    public PageTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Mix the bits of a key; packed page ids differ mostly in the low bits. */
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /** @return the slot holding key, or the empty slot where it belongs */
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * @return the value for the specified key, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V) values[slot(key)];
+    }
+
+    /**
+     * Map the specified key to a value, replacing any previous value.
+     *
+     * @param value the value; may not be null
+     * @return the previous value for the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("put(): null value.");
+        int i = slot(key);
+        V old = (V) values[i];
+        keys[i] = key;
+        values[i] = value;
+        if (old == null && ++size * 2 > values.length)
+            grow();
+        return old;
+    }
+
+    /**
+     * Remove the value for the specified key.
+     *
+     * @return the removed value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = slot(key);
+        V old = (V) values[i];
+        if (old == null)
+            return null;
+        size--;
+        // shift later entries of the probe sequence back into the hole,
+        // so that lookups never need tombstones
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        return old;
+    }
+
+    /** @return the number of entries */
+    public int size() {
+        return size;
+    }
+
+    /** @return a copy of the values, in no particular order */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        ArrayList<V> list = new ArrayList<V>(size);
+        for (Object v : values)
+            if (v != null)
+                list.add((V) v);
+        return list;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldValues.length * 2);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
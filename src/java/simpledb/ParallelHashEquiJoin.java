@@ -0,0 +1,439 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ParallelHashEquiJoin evaluates an equality join with several worker
+ * threads. The tuples of both children are partitioned among the workers
+ * by the hash of their join field, so each worker joins a disjoint share
+ * of the input with a {@link HashEquiJoin} of its own: the workers build
+ * their hash tables from their partitions of child1 concurrently, then
+ * probe them with their partitions of child2 concurrently. Each worker
+ * holds at most HashEquiJoin.MAP_SIZE / workers tuples of child1 in
+ * memory, so the parallel join spills at the same total size as a serial
+ * one.
+ * <p>
+ * One dispatcher thread reads the children, first child1 and then child2,
+ * and hands each worker its rows in batches through a bounded queue. The
+ * workers pass their output batches to the consuming operator through
+ * another bounded queue, so a slow consumer stalls the workers instead of
+ * letting the output pile up in memory. The output is in no particular
+ * order.
+ * <p>
+ * The number of workers used by the optimizer is set with the system
+ * property simpledb.joinThreads, e.g. -Dsimpledb.joinThreads=8; 0 uses one
+ * worker per available processor, and without the property joins run on
+ * the calling thread only.
+ */
+public class ParallelHashEquiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of workers for parallel joins, from the system property
+     * simpledb.joinThreads; 1 if parallel joins are disabled.
+     */
+    public static final int THREADS;
+    static {
+        String threads = System.getProperty("simpledb.joinThreads");
+        int n = 1;
+        if (threads != null && !threads.equals("")) {
+            n = Integer.parseInt(threads);
+            if (n <= 0)
+                n = Runtime.getRuntime().availableProcessors();
+        }
+        THREADS = n;
+    }
+
+    /** Batches queued per worker, and per worker on the output. */
+    private static final int QUEUE_BATCHES = 4;
+
+    /** Marks the end of a stream of batches in a queue. */
+    private static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[] { Type.INT_TYPE }));
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private int numWorkers;
+
+    transient private Thread[] threads;        // workers, then the dispatcher
+    transient private BlockingQueue<TupleBatch> output;
+    transient private int running = 0;         // workers that have not ended
+    transient private volatile Throwable failure = null;
+    transient private TupleBatch current = null;  // batch being read by fetchNext
+    transient private int currentRow = 0;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param numWorkers
+     *            The number of worker threads
+     */
+    public ParallelHashEquiJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, int numWorkers) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException(
+                    "ParallelHashEquiJoin(): unsupported predicate " + p.getOperator() + ".");
+        if (numWorkers < 1)
+            throw new IllegalArgumentException(
+                    "ParallelHashEquiJoin(): invalid number of workers " + numWorkers + ".");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.numWorkers = numWorkers;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name()
+    {
+	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name()
+    {
+	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /** @return the number of worker threads */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * @return the worker of a row, by the hash of its join field. The hash
+     *         is mixed differently than by HashEquiJoin's partitioning, so
+     *         every worker uses all of its partitions.
+     */
+    private int worker(TupleBatch b, int field, int row) {
+        int h;
+        if (b.getTupleDesc().getFieldType(field) == Type.INT_TYPE)
+            h = b.ints(field)[row];
+        else
+            h = JoinHashTable.hash(b.strings(field)[row]);
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7FFFFFFF) % numWorkers;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        start();
+        super.open();
+    }
+
+    /** Start the workers and the dispatcher. */
+    private void start() {
+        failure = null;
+        current = null;
+        output = new ArrayBlockingQueue<TupleBatch>(QUEUE_BATCHES * numWorkers);
+        threads = new Thread[numWorkers + 1];
+        final ArrayList<BlockingQueue<TupleBatch>> inputs = new ArrayList<BlockingQueue<TupleBatch>>();
+        for (int w = 0; w < numWorkers; w++) {
+            BlockingQueue<TupleBatch> input = new ArrayBlockingQueue<TupleBatch>(QUEUE_BATCHES);
+            inputs.add(input);
+            // the workers share the memory budget of one serial join
+            final HashEquiJoin join = new HashEquiJoin(pred,
+                    new QueueIterator(child1.getTupleDesc(), input),
+                    new QueueIterator(child2.getTupleDesc(), input),
+                    Math.max(1, HashEquiJoin.MAP_SIZE / numWorkers));
+            threads[w] = new Thread("join worker " + w) {
+                public void run() {
+                    work(join);
+                }
+            };
+        }
+        threads[numWorkers] = new Thread("join dispatcher") {
+            public void run() {
+                dispatch(inputs);
+            }
+        };
+        running = numWorkers;
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stop all threads and wait for them to exit, and remove the KeyFilter
+     * the dispatcher may have pushed down to child2.
+     */
+    private void stop() {
+        if (threads == null)
+            return;
+        for (Thread t : threads)
+            t.interrupt();
+        boolean interrupted = false;
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        KeyFilter.pushDown(child2, pred.getField2(), null);
+        threads = null;
+        output = null;
+        current = null;
+    }
+
+    /**
+     * Body of the dispatcher: send each worker its rows of child1, then of
+     * child2, each stream ending with END. Like HashEquiJoin, the
+     * dispatcher pushes a KeyFilter of the join values of child1 down to
+     * child2 before reading it.
+     */
+    private void dispatch(ArrayList<BlockingQueue<TupleBatch>> inputs) {
+        try {
+            KeyFilter keys = null;
+            if (KeyFilter.pushDown(child2, pred.getField2(), null))
+                keys = new KeyFilter();
+            dispatch(child1, pred.getField1(), inputs, keys);
+            if (keys != null) {
+                keys.finish();
+                KeyFilter.pushDown(child2, pred.getField2(), keys);
+            }
+            dispatch(child2, pred.getField2(), inputs, null);
+        } catch (InterruptedException e) {
+            // the join was closed
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Send each worker its rows of a child.
+     *
+     * @param keys a KeyFilter to add the join values of the child to, or null
+     */
+    private void dispatch(DbIterator child, int field,
+            ArrayList<BlockingQueue<TupleBatch>> inputs, KeyFilter keys) throws Exception {
+        TupleDesc td = child.getTupleDesc();
+        boolean intKey = td.getFieldType(field) == Type.INT_TYPE;
+        TupleBatch buffer = new TupleBatch(td);
+        TupleBatch[] staging = new TupleBatch[numWorkers];
+        for (int w = 0; w < numWorkers; w++)
+            staging[w] = new TupleBatch(td);
+        TupleBatch b;
+        while ((b = TupleBatch.next(child, buffer)) != null) {
+            for (int k = 0; k < b.numRows(); k++) {
+                int row = b.row(k);
+                if (keys != null) {
+                    if (intKey)
+                        keys.add(b.ints(field)[row]);
+                    else
+                        keys.add(b.strings(field)[row]);
+                }
+                int w = worker(b, field, row);
+                staging[w].add(b, row);
+                if (staging[w].isFull()) {
+                    inputs.get(w).put(staging[w]);
+                    staging[w] = new TupleBatch(td);
+                }
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        for (int w = 0; w < numWorkers; w++) {
+            if (staging[w].numRows() > 0)
+                inputs.get(w).put(staging[w]);
+            inputs.get(w).put(END);
+        }
+    }
+
+    /** Body of a worker: run its join, and pass its output on. */
+    private void work(HashEquiJoin join) {
+        try {
+            join.open();
+            TupleBatch b;
+            while ((b = join.nextBatch()) != null) {
+                // the batch is reused by join, so pass on a copy
+                TupleBatch copy = new TupleBatch(comboTD);
+                for (int k = 0; k < b.numRows(); k++)
+                    copy.add(b, b.row(k));
+                output.put(copy);
+            }
+            output.put(END);
+        } catch (InterruptedException e) {
+            // the join was closed
+        } catch (Throwable e) {
+            fail(e);
+        } finally {
+            join.close();
+        }
+    }
+
+    /** Record the first failure of a thread, and end its output. */
+    private void fail(Throwable e) {
+        if (failure == null)
+            failure = e;
+        // make sure the consumer wakes up to see the failure
+        try {
+            output.put(END);
+        } catch (InterruptedException ie) {
+            // the join was closed
+        }
+    }
+
+    /** Rethrow the failure of a thread in the consumer. */
+    private void checkFailure() throws DbException, TransactionAbortedException {
+        Throwable e = failure;
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new DbException("ParallelHashEquiJoin: " + e);
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        child2.close();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        child1.rewind();
+        child2.rewind();
+        discardBatch();
+        start();
+    }
+
+    /**
+     * Returns the next batch of joined rows produced by the workers. Every
+     * row is the concatenation of joining tuples from the left and right
+     * relation, as for {@link HashEquiJoin}.
+     *
+     * @return The next batch of matching rows, or null if there are none.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        while (running > 0) {
+            checkFailure();
+            TupleBatch b;
+            try {
+                b = output.take();
+            } catch (InterruptedException e) {
+                throw new DbException("nextBatch(): interrupted");
+            }
+            if (b != END)
+                return b;
+            running--;
+        }
+        checkFailure();
+        return null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (current == null || currentRow >= current.numRows()) {
+            current = nextBatch();
+            currentRow = 0;
+            if (current == null)
+                return null;
+        }
+        return current.toTuple(current.row(currentRow++));
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+    /**
+     * The input of a worker's join: the batches a worker receives from the
+     * dispatcher, up to END. A worker's child1 and child2 read the same
+     * queue, since the dispatcher sends all of child1 before child2.
+     */
+    private static class QueueIterator implements DbIterator, BatchIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        private final BlockingQueue<TupleBatch> queue;
+        private TupleBatch batch = null;
+        private int k = 0;
+        private boolean ended = false;
+
+        QueueIterator(TupleDesc td, BlockingQueue<TupleBatch> queue) {
+            this.td = td;
+            this.queue = queue;
+        }
+
+        public void open() {
+        }
+
+        public TupleBatch nextBatch() throws DbException {
+            if (ended)
+                return null;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("nextBatch(): interrupted");
+            }
+            k = 0;
+            if (batch == END) {
+                batch = null;
+                ended = true;
+            }
+            return batch;
+        }
+
+        public boolean hasNext() throws DbException {
+            while (batch == null || k >= batch.numRows()) {
+                if (nextBatch() == null)
+                    return false;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return batch.toTuple(batch.row(k++));
+        }
+
+        public void rewind() throws DbException {
+            throw new DbException("rewind(): a worker's input cannot be rewound.");
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+        }
+    }
+}
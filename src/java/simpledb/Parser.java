@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -253,18 +255,15 @@ public class Parser {
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,6 +272,44 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * LIMIT n [OFFSET m] at the end of a statement. Zql does not parse LIMIT,
+     * so the clause is removed from the statement before it is parsed (see
+     * {@link #stripLimit}) and added to the LogicalPlan of the query.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$");
+
+    // LIMIT and OFFSET of the statement being processed; limit < 0 if none
+    private int limit = -1, offset = 0;
+
+    /**
+     * Remove a LIMIT clause from the end of a statement, and remember it
+     * until the statement is planned.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(2));
+            offset = m.group(3) == null ? 0 : Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return m.group(1) + m.group(4);
+    }
+
+    /** Add the LIMIT clause of the statement being processed to its plan. */
+    private void addLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -280,6 +317,7 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        addLimit(lp);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -466,12 +504,13 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                addLimit(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -504,8 +543,19 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // read the statement, to remove its LIMIT clause before Zql
+            // parses it
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                text.write(buf, 0, n);
+            String stmt = stripLimit(text.toString("UTF-8"));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(stmt.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (limit >= 0 && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException(
+                        "LIMIT is only supported in SELECT statements.");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -579,14 +629,39 @@ public class Parser {
         }
     }
 
+    /**
+     * Handle administrative commands that are not SQL. Currently supports
+     * "SET BUFFERPOOL n;", which resizes the buffer pool to n pages.
+     *
+     * @param cmd the command, terminated by a semicolon
+     * @return true if cmd was an administrative command
+     */
+    public boolean handleAdminCommand(String cmd) {
+        String[] words = cmd.substring(0, cmd.length() - 1).trim().split("\\s+");
+        if (words.length == 3 && words[0].equalsIgnoreCase("set")
+                && words[1].equalsIgnoreCase("bufferpool")) {
+            try {
+                Database.getBufferPool().resize(Integer.parseInt(words[2]));
+                System.out.println("Buffer pool resized to "
+                        + Database.getBufferPool().getNumPages() + " pages.");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid buffer pool size " + words[2]);
+            } catch (DbException e) {
+                e.printStackTrace();
+            }
+            return true;
+        }
+        return false;
+    }
+
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -596,19 +671,51 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-warmstart] [-memresize] [-f queryFile]";
 
     protected void shutdown() {
+        Database.getBufferPool().disableBackgroundWriter();
+        Database.getBufferPool().disableMemoryPressureResize();
+        if (hotPagesFile != null) {
+            try {
+                Database.getBufferPool().disableWarmRestart(hotPagesFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
     protected boolean interactive = true;
 
+    /** Hot page list used for warm restarts, or null if they are disabled */
+    protected File hotPagesFile = null;
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
+        // write dirty pages in the background so checkpoints stay cheap
+        Database.getBufferPool().enableBackgroundWriter();
+
         TableStats.computeStatistics();
 
+        // warm restart: prefetch the pages that were hot before shutdown.
+        // Prefetching only fills free frames, so the pages read by the
+        // statistics scans are dropped first
+        for (int i = 1; i < argv.length; i++) {
+            if (argv[i].equals("-warmstart")) {
+                File catalogDir = new File(argv[0]).getAbsoluteFile().getParentFile();
+                hotPagesFile = new File(catalogDir, BufferPool.HOT_PAGES_FILE);
+                try {
+                    Database.getBufferPool().evictUnusedPages();
+                } catch (DbException e) {
+                    e.printStackTrace();
+                }
+                Database.getBufferPool().enableWarmRestart(hotPagesFile);
+                System.out.println("Warm restart enabled.");
+            }
+        }
+
         String queryFile = null;
 
         if (argv.length > 1) {
@@ -616,6 +723,12 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-warmstart")) {
+                    // handled right after the statistics were computed
+                } else if (argv[i].equals("-memresize")) {
+                    Database.getBufferPool().enableMemoryPressureResize(
+                            BufferPool.MEMORY_PRESSURE_THRESHOLD);
+                    System.out.println("Memory pressure resize enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -675,6 +788,11 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (handleAdminCommand(cmd)) {
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
@@ -103,6 +103,53 @@ public class Predicate implements Serializable {
     	return f.compare(op, operand);
     }
 
+    /**
+     * Narrow the selection of a batch to the rows that satisfy this
+     * predicate. Integer comparisons run as one loop per operator over the
+     * column, without creating Field objects.
+     *
+     * @param batch the batch to filter
+     * @return the number of rows that remain selected
+     */
+    public int filter(TupleBatch batch) {
+        int n = batch.numRows();
+        int[] sel = batch.selection();
+        int m = 0;
+        if (operand instanceof IntField) {
+            int[] col = batch.ints(field);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int k = 0; k < n; k++) { int r = batch.row(k); if (col[r] == v) sel[m++] = r; }
+                break;
+            case NOT_EQUALS:
+                for (int k = 0; k < n; k++) { int r = batch.row(k); if (col[r] != v) sel[m++] = r; }
+                break;
+            case GREATER_THAN:
+                for (int k = 0; k < n; k++) { int r = batch.row(k); if (col[r] > v) sel[m++] = r; }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int k = 0; k < n; k++) { int r = batch.row(k); if (col[r] >= v) sel[m++] = r; }
+                break;
+            case LESS_THAN:
+                for (int k = 0; k < n; k++) { int r = batch.row(k); if (col[r] < v) sel[m++] = r; }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int k = 0; k < n; k++) { int r = batch.row(k); if (col[r] <= v) sel[m++] = r; }
+                break;
+            }
+        } else {
+            for (int k = 0; k < n; k++) {
+                int r = batch.row(k);
+                if (batch.getField(field, r).compare(op, operand))
+                    sel[m++] = r;
+            }
+        }
+        batch.setSelection(m);
+        return m;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -11,6 +11,9 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient int[] outFields;
+    private transient TupleBatch buffer;
+    private transient TupleBatch view;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -48,6 +51,11 @@ public class Project extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
+        outFields = new int[outFieldIds.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = outFieldIds.get(i);
+        if (buffer == null)
+            buffer = new TupleBatch(child.getTupleDesc());
         super.open();
     }
 
@@ -58,25 +66,33 @@ public class Project extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         child.rewind();
+        discardBatch();
+    }
+
+    /**
+     * Returns the next batch of the child, projected without copying: the
+     * columns of the returned batch are the projected columns of the
+     * child's batch.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = TupleBatch.next(child, buffer);
+        if (batch == null)
+            return null;
+        view = TupleBatch.project(td, batch, outFields, view);
+        return view;
     }
 
     /**
      * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * operator, projecting out the fields from the tuple. The projected
+     * tuples are views that share the fields of the child's tuples.
      * 
      * @return The next tuple, or null if there are no more tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
+        if (child.hasNext())
+            return Tuple.project(td, child.next(), outFields);
         return null;
     }
 
@@ -0,0 +1,447 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * RadixHashJoin is an in-memory equi-join for build sides that are much
+ * larger than the CPU caches. A probe into one hash table of all of child1
+ * is a cache miss for almost every tuple; instead, both children are read
+ * into column arrays and radix-partitioned on the low bits of the hash of
+ * their join field, in one pass or in two passes of at most BITS_PER_PASS
+ * bits (so the partitions being written stay within the TLB), until each
+ * partition of child1 has about CACHE_ROWS rows. Each pair of partitions is
+ * then joined with a small hash table that stays in the cache while the
+ * matching partition of child2 is probed against it.
+ * <p>
+ * Both children are held in memory; the optimizer only chooses this join
+ * when their estimated cardinalities add up to at most MAX_ROWS (see
+ * {@link JoinOptimizer#bestJoinMethod}), and uses {@link HashEquiJoin},
+ * which spills to disk, otherwise.
+ */
+public class RadixHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Rows of child1 per partition, so that a partition fits in the cache. */
+    public static final int CACHE_ROWS = 1 << 13;
+
+    /** Maximum number of radix bits partitioned on in one pass. */
+    public static final int BITS_PER_PASS = 8;
+
+    /** Maximum number of passes over the rows to partition them. */
+    public static final int MAX_PASSES = 2;
+
+    /** Number of rows of both children the optimizer lets this join hold. */
+    public static final int MAX_ROWS = 1 << 22;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+
+    transient private Relation build, probe;
+    transient private int bits;                // radix bits partitioned on
+    transient private int[] buildStart, probeStart;  // first row of each partition
+    transient private int[] heads, next;       // hash table of a partition of build
+    transient private int mask;                // buckets of heads in use, minus one
+    transient private int part = -1;           // partition being joined
+    transient private int probeRow = 0;        // next row of probe to join
+    transient private int match = -1;          // next row of build to join with probeRow - 1
+    transient private TupleBatch out;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *            if the predicate is not EQUALS
+     */
+    public RadixHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException(
+                    "RadixHashJoin(): unsupported predicate " + p.getOperator() + ".");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name()
+    {
+	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name()
+    {
+	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the number of radix bits needed to split card rows of child1
+     *         into partitions of at most about CACHE_ROWS rows
+     */
+    public static int radixBits(int card) {
+        int b = 0;
+        while (b < BITS_PER_PASS * MAX_PASSES && ((long) CACHE_ROWS << b) < card)
+            b++;
+        return b;
+    }
+
+    /** @return the number of passes needed to partition on b radix bits */
+    public static int passes(int b) {
+        return (b + BITS_PER_PASS - 1) / BITS_PER_PASS;
+    }
+
+    /**
+     * @return the hash of a join value (an int, or the hash of a string),
+     *         mixed so that its low bits can be partitioned on
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * The rows of a child, in column arrays (an int[] or a String[] per
+     * field) along with the mixed hash of the join field of each row.
+     */
+    private static class Relation {
+        final TupleDesc td;
+        final int key;
+        final boolean intKey;
+        Object[] columns;
+        int[] hashes;
+        int size = 0;
+
+        Relation(TupleDesc td, int key) {
+            this.td = td;
+            this.key = key;
+            intKey = td.getFieldType(key) == Type.INT_TYPE;
+            columns = allocate(TupleBatch.CAPACITY);
+            hashes = new int[TupleBatch.CAPACITY];
+        }
+
+        Object[] allocate(int capacity) {
+            Object[] cols = new Object[td.numFields()];
+            for (int i = 0; i < cols.length; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    cols[i] = new int[capacity];
+                else
+                    cols[i] = new String[capacity];
+            }
+            return cols;
+        }
+
+        int[] ints(int i) {
+            return (int[]) columns[i];
+        }
+
+        String[] strings(int i) {
+            return (String[]) columns[i];
+        }
+
+        /**
+         * Append the rows of a child.
+         *
+         * @param keys a KeyFilter to add the join values to, or null
+         */
+        void read(DbIterator child, TupleBatch buffer, KeyFilter keys)
+                throws DbException, TransactionAbortedException {
+            TupleBatch b;
+            while ((b = TupleBatch.next(child, buffer)) != null) {
+                if (size + b.numRows() > hashes.length)
+                    grow(Math.max(hashes.length * 2, size + b.numRows()));
+                for (int k = 0; k < b.numRows(); k++) {
+                    int r = b.row(k);
+                    for (int i = 0; i < columns.length; i++) {
+                        if (columns[i] instanceof int[])
+                            ints(i)[size] = b.ints(i)[r];
+                        else
+                            strings(i)[size] = b.strings(i)[r];
+                    }
+                    if (intKey) {
+                        int v = b.ints(key)[r];
+                        hashes[size] = mix(v);
+                        if (keys != null)
+                            keys.add(v);
+                    } else {
+                        String s = b.strings(key)[r];
+                        hashes[size] = mix(JoinHashTable.hash(s));
+                        if (keys != null)
+                            keys.add(s);
+                    }
+                    size++;
+                }
+            }
+        }
+
+        private void grow(int capacity) {
+            Object[] cols = allocate(capacity);
+            for (int i = 0; i < cols.length; i++)
+                System.arraycopy(columns[i], 0, cols[i], 0, size);
+            int[] h = new int[capacity];
+            System.arraycopy(hashes, 0, h, 0, size);
+            columns = cols;
+            hashes = h;
+        }
+
+        /**
+         * Reorder the rows into partitions on the low b bits of their
+         * hashes, in passes of at most BITS_PER_PASS bits: the first pass
+         * partitions on the highest of these bits, and every further pass
+         * splits each partition of the previous one on the next bits.
+         *
+         * @return the first row of each of the 2^b partitions, followed by
+         *         size
+         */
+        int[] partition(int b) {
+            if (b > 0) {
+                Object[] cols = allocate(size);
+                int[] h = new int[size];
+                // ranges of rows that the next pass splits further
+                int[] ranges = new int[]{0, size};
+                int done = 0;
+                while (done < b) {
+                    int passBits = Math.min(BITS_PER_PASS, b - done);
+                    int shift = b - done - passBits;
+                    int[] next = new int[((ranges.length - 1) << passBits) + 1];
+                    for (int j = 0; j + 1 < ranges.length; j++)
+                        scatter(cols, h, ranges[j], ranges[j + 1], shift, passBits,
+                                next, j << passBits);
+                    next[next.length - 1] = size;
+                    ranges = next;
+                    // the rows are now in cols and h; swap the buffers
+                    Object[] c = columns;
+                    columns = cols;
+                    cols = c;
+                    int[] t = hashes;
+                    hashes = h;
+                    h = t;
+                    done += passBits;
+                }
+                return ranges;
+            }
+            return new int[]{0, size};
+        }
+
+        /**
+         * Copy rows [from, to) into the same rows of dstColumns and
+         * dstHashes, ordered on bits [shift, shift + b) of their hashes, and
+         * store the first row of each of the 2^b partitions at
+         * starts[offset...].
+         */
+        private void scatter(Object[] dstColumns, int[] dstHashes, int from, int to,
+                int shift, int b, int[] starts, int offset) {
+            int fanout = 1 << b, mask = fanout - 1;
+            int[] pos = new int[fanout];
+            for (int r = from; r < to; r++)
+                pos[(hashes[r] >>> shift) & mask]++;
+            int p = from;
+            for (int i = 0; i < fanout; i++) {
+                int n = pos[i];
+                starts[offset + i] = pos[i] = p;
+                p += n;
+            }
+            for (int r = from; r < to; r++) {
+                int d = pos[(hashes[r] >>> shift) & mask]++;
+                dstHashes[d] = hashes[r];
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i] instanceof int[])
+                        ((int[]) dstColumns[i])[d] = ((int[]) columns[i])[r];
+                    else
+                        ((String[]) dstColumns[i])[d] = ((String[]) columns[i])[r];
+                }
+            }
+        }
+
+        /** @return true if row r has the same join value as row s of other */
+        boolean sameKey(int r, Relation other, int s) {
+            if (intKey)
+                return ints(key)[r] == other.ints(other.key)[s];
+            return strings(key)[r].equals(other.strings(other.key)[s]);
+        }
+
+        /** Copy the fields of row r into fields [first, ...) of a batch row. */
+        void copyRow(int r, TupleBatch out, int row, int first) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] instanceof int[])
+                    out.ints(first + i)[row] = ints(i)[r];
+                else
+                    out.strings(first + i)[row] = strings(i)[r];
+            }
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        out = new TupleBatch(comboTD);
+        try {
+            load();
+        } finally {
+            // both children have been read completely
+            KeyFilter.pushDown(child2, pred.getField2(), null);
+        }
+        super.open();
+    }
+
+    /**
+     * Read and partition both children. As for {@link HashEquiJoin}, a
+     * KeyFilter of the join values of child1 is pushed down to child2 if it
+     * reads a table through SeqScan, so that rows of child2 that cannot join
+     * are not held in memory.
+     */
+    private void load() throws DbException, TransactionAbortedException {
+        KeyFilter keys = null;
+        if (KeyFilter.pushDown(child2, pred.getField2(), null))
+            keys = new KeyFilter();
+        build = new Relation(child1.getTupleDesc(), pred.getField1());
+        build.read(child1, new TupleBatch(child1.getTupleDesc()), keys);
+        if (keys != null) {
+            keys.finish();
+            KeyFilter.pushDown(child2, pred.getField2(), keys);
+        }
+        probe = new Relation(child2.getTupleDesc(), pred.getField2());
+        probe.read(child2, new TupleBatch(child2.getTupleDesc()), null);
+        bits = radixBits(build.size);
+        buildStart = build.partition(bits);
+        probeStart = probe.partition(bits);
+        int largest = 0;
+        for (int p = 0; p + 1 < buildStart.length; p++)
+            largest = Math.max(largest, buildStart[p + 1] - buildStart[p]);
+        int buckets = 1;
+        while (buckets < largest)
+            buckets <<= 1;
+        heads = new int[buckets];
+        next = new int[build.size];
+        part = -1;
+        probeRow = 0;
+        match = -1;
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        build = probe = null;
+        buildStart = probeStart = null;
+        heads = next = null;
+        out = null;
+    }
+
+    /**
+     * Start the join over. Both children were read completely when the join
+     * was opened, so only the partitions are joined again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        discardBatch();
+        part = -1;
+        probeRow = 0;
+        match = -1;
+    }
+
+    /**
+     * Build the hash table of the next partition that has rows on both
+     * sides. The table is indexed on the bits of the hash above the radix
+     * bits, which are the same for all rows of the partition.
+     *
+     * @return false if all partitions have been joined
+     */
+    private boolean nextPartition() {
+        while (++part + 1 < buildStart.length) {
+            int from = buildStart[part], to = buildStart[part + 1];
+            if (from == to || probeStart[part] == probeStart[part + 1])
+                continue;
+            int buckets = 1;
+            while (buckets < to - from)
+                buckets <<= 1;
+            Arrays.fill(heads, 0, buckets, -1);
+            mask = buckets - 1;
+            for (int r = from; r < to; r++) {
+                int b = (build.hashes[r] >>> bits) & mask;
+                next[r] = heads[b];
+                heads[b] = r;
+            }
+            probeRow = probeStart[part];
+            match = -1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next batch of joined rows: the rows of each partition of
+     * child2, in order, joined with the hash table of the same partition of
+     * child1. As for {@link HashEquiJoin}, every row of the result is the
+     * concatenation of joining tuples from the left and right relation.
+     *
+     * @return The next batch of matching rows, or null if there are none.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        out.clear();
+        if (part >= buildStart.length - 1)
+            return null;
+        int n1 = build.td.numFields();
+        int[] hashes1 = build.hashes, hashes2 = probe.hashes;
+        while (!out.isFull()) {
+            if (match != -1) {
+                int q = probeRow - 1;
+                int r = match;
+                match = next[r];
+                if (hashes1[r] == hashes2[q] && build.sameKey(r, probe, q)) {
+                    int row = out.addRow();
+                    build.copyRow(r, out, row, 0);
+                    probe.copyRow(q, out, row, n1);
+                }
+                continue;
+            }
+            if (part < 0 || probeRow >= probeStart[part + 1]) {
+                if (!nextPartition())
+                    break;
+                continue;
+            }
+            int q = probeRow++;
+            match = heads[(hashes2[q] >>> bits) & mask];
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples; see {@link #nextBatch}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return fetchFromBatch();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -74,9 +74,30 @@ public class RecordId implements Serializable {
      */
     @Override
     public int hashCode() {
-    	// concatenate pid.hashCode() and tupleno
-    	Long codeLong = Long.parseLong(new Integer(pid.hashCode()).toString() + new Integer(tupleno).toString());
-        return codeLong.hashCode();
+    	// combine pid.hashCode() and tupleno
+        return 31 * pid.hashCode() + tupleno;
+    }
+
+    /**
+     * Pack this RecordId into a long: the page number in the high 48 bits
+     * and the tuple number in the low 16 bits. The table id is not part of
+     * the packed value, so it must be known from context (e.g., the table
+     * an index or a join input belongs to).
+     * 
+     * @return the packed RecordId
+     * @see #fromLong
+     */
+    public long toLong() {
+    	return ((long) pid.pageNumber() << 16) | (tupleno & 0xFFFF);
+    }
+
+    /**
+     * @param tableId the table the record belongs to
+     * @param rid a RecordId packed by {@link #toLong}
+     * @return the unpacked RecordId
+     */
+    public static RecordId fromLong(int tableId, long rid) {
+    	return new RecordId(new HeapPageId(tableId, (int) (rid >>> 16)), (int) (rid & 0xFFFF));
     }
 
 }
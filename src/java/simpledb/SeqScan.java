@@ -7,7 +7,7 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements DbIterator, BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId tid;
@@ -15,6 +15,10 @@ public class SeqScan implements DbIterator {
     private String tableAlias;
     private DbFile DbFile;
     private DbFileIterator DbIt;
+    private transient TupleBatch batch;
+    private transient KeyFilter keyFilter;
+    private transient int keyField;
+    private transient Tuple pending;  // next tuple that passed keyFilter
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -71,6 +75,22 @@ public class SeqScan implements DbIterator {
     	//reset the tableid and tableAlias with new tableid and tableAlias
     	this.tableid = tableid;
     	this.tableAlias = tableAlias;
+    	this.batch = null;
+    }
+
+    /**
+     * Drop the tuples whose value of the specified field is certainly not
+     * in a KeyFilter, e.g. one built by a hash join this scan is the probe
+     * side of. Tuples are dropped as they are read from their pages, before
+     * they are copied into batches or reach any other operator.
+     *
+     * @param field the field to test
+     * @param f the filter, or null to return all tuples again
+     * @see KeyFilter#pushDown
+     */
+    public void setKeyFilter(int field, KeyFilter f) {
+    	keyField = field;
+    	keyFilter = f;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -111,25 +131,61 @@ public class SeqScan implements DbIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         //if iterator has next element return true, else return false
-    	if (DbIt != null)
-    		return DbIt.hasNext();
-    	return false;
+    	if (DbIt == null)
+    		return false;
+    	if (keyFilter == null)
+    		return pending != null || DbIt.hasNext();
+    	while (pending == null && DbIt.hasNext()) {
+    		Tuple t = DbIt.next();
+    		if (keyFilter.mightContain(t.getField(keyField)))
+    			pending = t;
+    	}
+    	return pending != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         //if iterator has next element, return the element, else throw exception
-    	if(DbIt.hasNext())
+    	if(hasNext())
     	{
-    		return DbIt.next();
+    		if (pending == null)
+    			return DbIt.next();
+    		Tuple t = pending;
+    		pending = null;
+    		return t;
     	}
     	else
     		throw new NoSuchElementException("No such Tuple.");
     }
 
+    /**
+     * Returns the next batch of up to TupleBatch.CAPACITY tuples of the
+     * table, copied into column vectors from the tuples of its pages.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    	if (DbIt == null)
+    		throw new IllegalStateException("SeqScan not yet open");
+    	if (batch == null)
+    		batch = new TupleBatch(getTupleDesc());
+    	batch.clear();
+    	if (pending != null) {
+    		batch.add(pending);
+    		pending = null;
+    	}
+    	while (!batch.isFull() && DbIt.hasNext()) {
+    		Tuple t = DbIt.next();
+    		if (keyFilter == null || keyFilter.mightContain(t.getField(keyField)))
+    			batch.add(t);
+    	}
+    	return batch.numRows() == 0 ? null : batch;
+    }
+
     public void close() {
-        //clear this iterator
+        //close this iterator, releasing its pinned page, and clear it
+    	if (DbIt != null)
+    		DbIt.close();
     	DbIt = null;
+    	pending = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
@@ -138,5 +194,6 @@ public class SeqScan implements DbIterator {
         // throws DbException when rewind is unsupported.
     	DbIt.close();
     	DbIt.open();
+    	pending = null;
     }
 }
\ No newline at end of file
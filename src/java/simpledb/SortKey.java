@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * SortKey encodes the ORDER BY fields of a tuple into a normalized,
+ * byte-comparable key: for two tuples, comparing their keys byte by byte
+ * as unsigned values ({@link #compare}) gives the same result as comparing
+ * their fields one after the other with {@link Field#compare}, in
+ * ascending or descending order per field. Sorts encode every tuple once
+ * and then compare keys without decoding fields or calling Field methods.
+ * <p>
+ * Each field is encoded as follows, and all its bytes are inverted if it
+ * is sorted in descending order:
+ * <ul>
+ * <li>INT_TYPE: 4 bytes, big-endian, with the sign bit flipped so that
+ * negative values sort first.</li>
+ * <li>STRING_TYPE: 2 bytes per char, big-endian, which follows the order
+ * of String.compareTo, with the char 0 encoded as 00 00 FF, and followed
+ * by the terminator 00 00 00, so that a string sorts before the strings it
+ * is a prefix of.</li>
+ * </ul>
+ */
+public class SortKey {
+
+    private final int[] fields;
+    private final boolean[] asc;
+    private final boolean[] isInt;
+    private byte[] buf = new byte[64];
+
+    /**
+     * @param td the TupleDesc of the tuples to encode
+     * @param fields the fields to sort on, most significant first
+     * @param asc for each field, true if it is sorted in ascending order
+     * @throws IllegalArgumentException if fields and asc differ in length
+     */
+    public SortKey(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length != asc.length)
+            throw new IllegalArgumentException(
+                    "SortKey(): one sort order per field is required.");
+        this.fields = fields.clone();
+        this.asc = asc.clone();
+        isInt = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+    }
+
+    /**
+     * @return the maximum length of the key of a tuple of td sorted on the
+     *         specified fields
+     */
+    public static int maxLength(TupleDesc td, int[] fields) {
+        int n = 0;
+        for (int f : fields) {
+            if (td.getFieldType(f) == Type.INT_TYPE)
+                n += 4;
+            else
+                n += 3 * Type.STRING_LEN + 3;
+        }
+        return n;
+    }
+
+    /** @return the key of a tuple */
+    public byte[] encode(Tuple t) {
+        int n = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = n;
+            if (isInt[i]) {
+                n = putInt(n, ((IntField) t.getField(fields[i])).getValue());
+            } else {
+                n = putString(n, ((StringField) t.getField(fields[i])).getValue());
+            }
+            if (!asc[i])
+                for (int j = start; j < n; j++)
+                    buf[j] = (byte) ~buf[j];
+        }
+        return Arrays.copyOf(buf, n);
+    }
+
+    private void ensure(int n) {
+        if (n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(n, buf.length * 2));
+    }
+
+    private int putInt(int n, int v) {
+        ensure(n + 4);
+        v ^= 0x80000000;
+        buf[n] = (byte) (v >>> 24);
+        buf[n + 1] = (byte) (v >>> 16);
+        buf[n + 2] = (byte) (v >>> 8);
+        buf[n + 3] = (byte) v;
+        return n + 4;
+    }
+
+    private int putString(int n, String s) {
+        ensure(n + 3 * s.length() + 3);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            buf[n++] = (byte) (c >>> 8);
+            buf[n++] = (byte) c;
+            if (c == 0)
+                buf[n++] = (byte) 0xFF;
+        }
+        buf[n++] = 0;
+        buf[n++] = 0;
+        buf[n++] = 0;
+        return n;
+    }
+
+    /**
+     * Compare two keys byte by byte, as unsigned values.
+     *
+     * @return negative, zero or positive if a sorts before, with or after b
+     */
+    public static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i])
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+        }
+        return a.length - b.length;
+    }
+}
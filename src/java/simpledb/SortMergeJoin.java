@@ -0,0 +1,309 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin implements the relational join operation by merging its
+ * children in ascending order of their join fields. Children that are not
+ * known to be sorted on their join field are sorted with {@link OrderBy}
+ * when the join is opened.
+ * <p>
+ * EQUALS and the inequality predicates (LESS_THAN, LESS_THAN_OR_EQ,
+ * GREATER_THAN, GREATER_THAN_OR_EQ) are supported. For EQUALS, only the
+ * tuples of child1 with the join value being merged are kept in memory.
+ * For an inequality, the tuples of one child that join with the current
+ * tuple of the other form a prefix of the sorted child, which grows as the
+ * merge advances; that prefix is kept in memory.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private boolean sorted1, sorted2;
+    private TupleDesc comboTD;
+
+    transient private DbIterator in1, in2;   // the children, in sorted order
+    transient private ArrayList<Tuple> buffer;
+    transient private int bufferPos = 0;
+    transient private Tuple next1 = null;    // next tuple of child1 to merge
+    transient private Tuple next2 = null;    // next tuple of the buffered child
+    transient private Tuple current = null;  // tuple joined with buffer
+    transient private boolean done = false;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on; the children are sorted when the join is opened.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *            if the predicate is not EQUALS or an inequality
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, false, child2, false);
+    }
+
+    /**
+     * Constructor for children that may already be sorted.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param sorted1
+     *            true if child1 returns its tuples in ascending order of its
+     *            join field
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param sorted2
+     *            true if child2 returns its tuples in ascending order of its
+     *            join field
+     * @throws IllegalArgumentException
+     *            if the predicate is not EQUALS or an inequality
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, boolean sorted1,
+            DbIterator child2, boolean sorted2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException(
+                    "SortMergeJoin(): unsupported predicate " + p.getOperator() + ".");
+        this.pred = p;
+        this.child1 = child1;
+        this.sorted1 = sorted1;
+        this.child2 = child2;
+        this.sorted2 = sorted2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return true if SortMergeJoin can evaluate the specified predicate */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * @return true if the tuples of the specified iterator are known to be in
+     *         ascending order of the specified field: the iterator is an
+     *         ascending OrderBy on the field, or a SortMergeJoin whose output
+     *         is ordered on it.
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof SortMergeJoin)
+            return ((SortMergeJoin) it).isSortedOn(field);
+        return false;
+    }
+
+    /**
+     * @return true if the output of this join is in ascending order of the
+     *         specified field. The output follows the order of the child
+     *         whose tuples are not buffered, and for EQUALS both join fields
+     *         have the same value.
+     */
+    public boolean isSortedOn(int field) {
+        int f1 = pred.getField1();
+        int f2 = child1.getTupleDesc().numFields() + pred.getField2();
+        switch (pred.getOperator()) {
+        case EQUALS:
+            return field == f1 || field == f2;
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            return field == f2;
+        default:
+            return field == f1;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name()
+    {
+	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name()
+    {
+	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the order of two join values: negative, zero or positive if a
+     *         is less than, equal to or greater than b
+     */
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    /**
+     * @return true if the child1 tuples are buffered, i.e., child2 drives the
+     *         merge: for LESS_THAN and LESS_THAN_OR_EQ, and for EQUALS
+     */
+    private boolean buffersChild1() {
+        Predicate.Op op = pred.getOperator();
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        in1 = sorted1 ? child1 : new OrderBy(pred.getField1(), true, child1);
+        in2 = sorted2 ? child2 : new OrderBy(pred.getField2(), true, child2);
+        in1.open();
+        in2.open();
+        buffer = new ArrayList<Tuple>();
+        reset();
+        super.open();
+    }
+
+    /** Start the merge over. */
+    private void reset() throws DbException, TransactionAbortedException {
+        buffer.clear();
+        bufferPos = 0;
+        current = null;
+        next1 = next2 = null;
+        if (buffersChild1())
+            next1 = in1.hasNext() ? in1.next() : null;
+        else
+            next2 = in2.hasNext() ? in2.next() : null;
+        done = false;
+    }
+
+    public void close() {
+        super.close();
+        if (in1 != null) {
+            in1.close();
+            in2.close();
+        }
+        in1 = in2 = null;
+        buffer = null;
+        current = next1 = next2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        in1.rewind();
+        in2.rewind();
+        discardBatch();
+        reset();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As for {@link Join}, every tuple is the concatenation of
+     * joining tuples from the left and right relation.
+     * <p>
+     * For EQUALS, the tuples of child1 with the join value of the current
+     * child2 tuple are buffered, and each child2 tuple with that value is
+     * joined with the buffer. For LESS_THAN(_OR_EQ), every child2 tuple joins
+     * with the child1 tuples below (or equal to) it, and for
+     * GREATER_THAN(_OR_EQ) every child1 tuple joins with the child2 tuples
+     * below (or equal to) it.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEquals();
+        return fetchNextInequality();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1(), f2 = pred.getField2();
+        while (!done) {
+            if (current != null && bufferPos < buffer.size())
+                return Tuple.merge(comboTD, buffer.get(bufferPos++), current);
+            if (!in2.hasNext()) {
+                done = true;
+                break;
+            }
+            Tuple t2 = in2.next();
+            Field key = t2.getField(f2);
+            bufferPos = 0;
+            if (!buffer.isEmpty() && compare(buffer.get(0).getField(f1), key) == 0) {
+                current = t2;
+                continue;
+            }
+            // advance child1 to the group of tuples with the new value
+            buffer.clear();
+            current = null;
+            while (next1 != null && compare(next1.getField(f1), key) < 0)
+                next1 = in1.hasNext() ? in1.next() : null;
+            if (next1 == null) {
+                done = true;
+                break;
+            }
+            while (next1 != null && compare(next1.getField(f1), key) == 0) {
+                buffer.add(next1);
+                next1 = in1.hasNext() ? in1.next() : null;
+            }
+            current = t2;
+        }
+        return null;
+    }
+
+    private Tuple fetchNextInequality() throws TransactionAbortedException, DbException {
+        boolean left = buffersChild1();
+        DbIterator driver = left ? in2 : in1;
+        DbIterator buffered = left ? in1 : in2;
+        int fd = left ? pred.getField2() : pred.getField1();
+        int fb = left ? pred.getField1() : pred.getField2();
+        Predicate.Op op = pred.getOperator();
+        boolean strict = op == Predicate.Op.LESS_THAN || op == Predicate.Op.GREATER_THAN;
+        Tuple next = left ? next1 : next2;
+        while (!done) {
+            if (current != null && bufferPos < buffer.size()) {
+                Tuple t = buffer.get(bufferPos++);
+                return left ? Tuple.merge(comboTD, t, current)
+                        : Tuple.merge(comboTD, current, t);
+            }
+            if (!driver.hasNext()) {
+                done = true;
+                break;
+            }
+            current = driver.next();
+            bufferPos = 0;
+            // extend the buffer with the tuples that join with current
+            Field key = current.getField(fd);
+            while (next != null) {
+                int c = compare(next.getField(fb), key);
+                if (c > 0 || (strict && c == 0))
+                    break;
+                buffer.add(next);
+                next = buffered.hasNext() ? buffered.next() : null;
+            }
+            if (left)
+                next1 = next;
+            else
+                next2 = next;
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
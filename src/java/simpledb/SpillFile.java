@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples, written by operators that run
+ * out of memory (e.g., the partitions of a {@link HashEquiJoin}) and read
+ * back with {@link #iterator}. Tuples are appended sequentially; the file
+ * must be finished with {@link #finish} before it is read, and deleted
+ * with {@link #delete} once it is no longer needed. Files are not deleted
+ * on exit, so operators must delete their spill files when they are
+ * closed, and when they fail.
+ * <p>
+ * Fields are written in their compact form (an int, or a string in
+ * modified UTF-8) rather than padded to their on-page size.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Create an empty spill file in the default temporary directory.
+     *
+     * @param td the TupleDesc of the tuples of the file
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb", ".spill");
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            delete();
+            throw new DbException("SpillFile(): cannot create spill file: " + e);
+        }
+    }
+
+    /** @return the TupleDesc of the tuples of this file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples written to this file */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** Append a tuple to the file. */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("add(): spill file is finished.");
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (td.getFieldType(i) == Type.INT_TYPE)
+                    out.writeInt(((IntField) f).getValue());
+                else
+                    out.writeUTF(((StringField) f).getValue());
+            }
+        } catch (IOException e) {
+            throw new DbException("add(): cannot write spill file: " + e);
+        }
+        numTuples++;
+    }
+
+    /** Flush the tuples written so far and stop writing. */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("finish(): cannot write spill file: " + e);
+        } finally {
+            out = null;
+        }
+    }
+
+    /** Delete the file. Iterators over it must be closed first. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            out = null;
+        }
+        if (file != null)
+            file.delete();
+        file = null;
+    }
+
+    /**
+     * @return an iterator over the tuples of the finished file, in the order
+     *         they were written
+     */
+    public DbIterator iterator() {
+        if (out != null)
+            throw new IllegalStateException("iterator(): spill file is not finished.");
+        return new Reader();
+    }
+
+    private class Reader implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+        private DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            if (file == null)
+                throw new DbException("open(): spill file was deleted.");
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("open(): cannot read spill file: " + e);
+            }
+            read = 0;
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("spill file iterator not open");
+            return read < numTuples;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Field[] fields = new Field[td.numFields()];
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        fields[i] = new IntField(in.readInt());
+                    else
+                        fields[i] = new StringField(in.readUTF(), Type.STRING_LEN);
+                }
+            } catch (IOException e) {
+                throw new DbException("next(): cannot read spill file: " + e);
+            }
+            read++;
+            return new Tuple(td, fields);
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written
+                }
+            }
+            in = null;
+        }
+    }
+}
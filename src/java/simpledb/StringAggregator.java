@@ -59,11 +59,33 @@ public class StringAggregator implements Aggregator {
 	
     	m_afieldname = tup.getTupleDesc().getFieldName(m_afield);
     	
+    	count(GroupField, 1);
+    }
+
+    /**
+     * Merge the rows of a batch into the aggregate.
+     * @param batch the batch containing an aggregate field and a group-by field
+     */
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+    	TupleDesc td = batch.getTupleDesc();
+    	m_afieldname = td.getFieldName(m_afield);
+    	if (m_nogrouping) {
+    		// a COUNT without groups only needs the number of rows
+    		if (batch.numRows() > 0)
+    			count(new IntField(Aggregator.NO_GROUPING), batch.numRows());
+    		return;
+    	}
+    	m_gbfieldname = td.getFieldName(m_gbfield);
+    	for (int k = 0; k < batch.numRows(); k++)
+    		count(batch.getField(m_gbfield, batch.row(k)), 1);
+    }
+
+    private void count(Field GroupField, int n) {
     	if(!m_CountNum.containsKey(GroupField))
     		m_CountNum.put(GroupField, 0);
     	
     	int CountNum = m_CountNum.get(GroupField);
-    	CountNum++;
+    	CountNum += n;
     	m_CountNum.put(GroupField, CountNum);
     }
 
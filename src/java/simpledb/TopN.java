@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY with a LIMIT: it returns the
+ * first n tuples of its child in the order of one or more fields, as
+ * {@link OrderBy} followed by {@link Limit} would, but only keeps n tuples
+ * (and their {@link SortKey}s) in memory. The tuples are kept in a heap
+ * whose top is the last of the n tuples kept so far, so each tuple of the
+ * child costs O(log n) and tuples that sort after it are dropped at once.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private int n;
+
+    transient private ArrayList<Tuple> top;
+    transient private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException
+     *            if n is negative
+     */
+    public TopN(int orderbyField, boolean asc, int n, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, n, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     * @throws IllegalArgumentException
+     *            if n is negative, there are no fields, or orderbyFields and
+     *            asc differ in length
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int n, DbIterator child) {
+        if (n < 0)
+            throw new IllegalArgumentException("TopN(): negative number of tuples.");
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException(
+                    "TopN(): one sort order per field is required.");
+        this.child = child;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.n = n;
+    }
+
+    /** @return true if the first field is sorted in ascending order */
+    public boolean isASC() {
+        return asc[0];
+    }
+
+    /** @return the first field sorted on */
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field sorted on, true if its order is ascending */
+    public boolean[] getAscending() {
+        return asc.clone();
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * A tuple of the child, its sort key and its position. Entries are
+     * ordered as they are returned: by key, and equal keys in the order of
+     * the child, as in OrderBy.
+     */
+    private static class Entry implements Comparable<Entry> {
+        final byte[] key;
+        final Tuple t;
+        final long seq;
+
+        Entry(byte[] key, Tuple t, long seq) {
+            this.key = key;
+            this.t = t;
+            this.seq = seq;
+        }
+
+        public int compareTo(Entry o) {
+            int c = SortKey.compare(key, o.key);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        SortKey sortKey = new SortKey(child.getTupleDesc(), orderByFields, asc);
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, Math.min(n, 1024)),
+                Collections.reverseOrder());
+        long seq = 0;
+        while (n > 0 && child.hasNext()) {
+            Tuple t = child.next();
+            Entry e = new Entry(sortKey.encode(t), t, seq++);
+            if (heap.size() < n)
+                heap.add(e);
+            else if (e.compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        Entry[] entries = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(entries);
+        top = new ArrayList<Tuple>(entries.length);
+        for (Entry e : entries)
+            top.add(e.t);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the tuples kept, in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -9,15 +9,38 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * Create a transaction. A read-only transaction reads a snapshot of the
+     * database as of the time it starts; it takes no locks, is never blocked
+     * by writers, and may not insert or delete tuples.
+     *
+     * @param readOnly true if the transaction only reads
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    /** @return true if this is a read-only (snapshot) transaction */
+    public boolean isReadOnly() {
+        return readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // nothing to log or roll back
+            Database.getBufferPool().getVersionStore().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -42,7 +65,10 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
@@ -60,6 +86,9 @@ public class Transaction {
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
+
+            // no locks are held here, so this is a safe place to checkpoint
+            Database.getLogFile().checkpointIfDue();
         }
     }
 }
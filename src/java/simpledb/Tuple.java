@@ -8,6 +8,12 @@ import java.util.*;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * The fields are kept in a flat array. Since Fields are immutable, tuples
+ * built from other tuples do not copy them: {@link #merge(TupleDesc, Tuple, Tuple)}
+ * and {@link #project} return views that read the fields of their input
+ * tuples, and only copy them into an array of their own if one of their
+ * fields is changed.
  */
 public class Tuple implements Serializable {
 
@@ -17,9 +23,19 @@ public class Tuple implements Serializable {
      */
     private TupleDesc schema;
     /**
-     * the actual data of the tuple
+     * the actual data of the tuple, or null for a view
      */
-    private ArrayList<Field> data;
+    private Field[] data;
+    /**
+     * the tuples a merged view reads from, and the number of fields of left
+     */
+    private Tuple left, right;
+    private int split;
+    /**
+     * the tuple a projected view reads from, and the fields it reads
+     */
+    private Tuple base;
+    private int[] map;
     /**
      * the corresponding record id of the tuple
      */
@@ -42,14 +58,25 @@ public class Tuple implements Serializable {
         schema = td;
        
         // initialize data fields
-        data = new ArrayList<Field>();
-        for (int i = 0; i < td.numFields(); i++)
-        	data.add(i, null);
+        data = new Field[td.numFields()];
         
         // initialize rid
         rid = null;
     }
 
+    /**
+     * Create a tuple that takes ownership of the specified fields.
+     */
+    Tuple(TupleDesc td, Field[] fields) {
+        schema = td;
+        data = fields;
+    }
+
+    /** Create a view; the caller sets the fields it reads from. */
+    private Tuple(TupleDesc td, boolean view) {
+        schema = td;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -84,12 +111,12 @@ public class Tuple implements Serializable {
      *            new value for the field.
      */
     public void setField(int i, Field f) {
-        try {
-        	data.set(i, f);
-        } catch (IndexOutOfBoundsException e) {
+        if (data == null)
+            materialize();
+        if (i < 0 || i >= data.length)
         	throw new IndexOutOfBoundsException(
         			"setField(int, Field): invalid index i.");
-        }
+        data[i] = f;
     }
 
     /**
@@ -99,12 +126,39 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-        try {
-        	return data.get(i);
-        } catch (IndexOutOfBoundsException e) {
+        if (data != null) {
+            if (i < 0 || i >= data.length)
+            	throw new IndexOutOfBoundsException(
+    				"getField(int): invalid index i.");
+            return data[i];
+        }
+        if (base != null) {
+            if (i < 0 || i >= map.length)
+            	throw new IndexOutOfBoundsException(
+    				"getField(int): invalid index i.");
+            return base.getField(map[i]);
+        }
+        if (i < 0)
         	throw new IndexOutOfBoundsException(
 				"getField(int): invalid index i.");
-        }
+        return i < split ? left.getField(i) : right.getField(i - split);
+    }
+
+    /** @return the number of fields of this tuple */
+    private int numFields() {
+        if (data != null)
+            return data.length;
+        return base != null ? map.length : split + right.numFields();
+    }
+
+    /** Copy the fields of a view into an array of its own. */
+    private void materialize() {
+        Field[] fields = new Field[numFields()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = getField(i);
+        data = fields;
+        left = right = base = null;
+        map = null;
     }
 
     /**
@@ -116,15 +170,14 @@ public class Tuple implements Serializable {
      * where \t is any whitespace, except newline, and \n is a newline
      */
     public String toString() {
-    	String s = "";
+    	StringBuilder s = new StringBuilder();
         for (int i = 0; i < schema.numFields(); i++)
         {
-        	if (i < schema.numFields()-1)
-        		s += data.get(i).toString() + " ";
-        	else
-        		s += data.get(i).toString();
+        	if (i > 0)
+        		s.append(' ');
+        	s.append(getField(i).toString());
         }
-        return s;
+        return s.toString();
     }
     
     /**
@@ -133,7 +186,9 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
-        return data.iterator();
+        if (data == null)
+            materialize();
+        return Collections.unmodifiableList(Arrays.asList(data)).iterator();
     }
     
     /**
@@ -147,10 +202,9 @@ public class Tuple implements Serializable {
         			"Tuple(TupleDesc): Invalid schema");
         	
     	// resize data
-    	for (int i = schema.numFields(); i < td.numFields(); i++)
-    		data.add(i, null);
-    	for (int i = schema.numFields(); i > td.numFields(); i--)
-    		data.remove(i);
+    	if (data == null)
+    		materialize();
+    	data = Arrays.copyOf(data, td.numFields());
         
     	schema = td;
     }
@@ -167,27 +221,46 @@ public class Tuple implements Serializable {
      * @param td2
      *            The Tuple with the last fields of the Tuple
      * @return the new Tuple
+     * @see #merge(TupleDesc, Tuple, Tuple)
      */
     public static Tuple merge(Tuple t1, Tuple t2) {
-    	// create new Tuple with merged TupleDesc
-    	TupleDesc td1 = t1.getTupleDesc();
-    	TupleDesc td2 = t2.getTupleDesc();
-    	TupleDesc td = TupleDesc.merge(td1, td2);
-    	Tuple tm = new Tuple(td);
-    	
-    	// fill new Tuple with data
-    	int index = 0;
-    	for (int i = 0; i < td1.numFields(); i++)
-    	{
-    		tm.setField(index, t1.getField(i));
-    		index++;
-    	}
-    	for (int i = 0; i < td2.numFields(); i++)
-    	{
-    		tm.setField(index, t2.getField(i));
-    		index++;
-    	}
-    
+    	return merge(TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc()), t1, t2);
+    }
+
+    /**
+     * Merge two Tuples into a view whose fields are t1's fields followed by
+     * t2's fields. Operators that merge many tuples pass the merged
+     * TupleDesc they computed once, instead of merging the TupleDescs of
+     * every pair of tuples.
+     *
+     * @param td the merged TupleDesc of t1 and t2
+     * @param t1 The Tuple with the first fields of the new Tuple
+     * @param t2 The Tuple with the last fields of the new Tuple
+     * @return the new Tuple
+     */
+    public static Tuple merge(TupleDesc td, Tuple t1, Tuple t2) {
+    	Tuple tm = new Tuple(td, true);
+    	tm.left = t1;
+    	tm.right = t2;
+    	tm.split = t1.getTupleDesc().numFields();
     	return tm;
     }
+
+    /**
+     * Create a view of some of the fields of a tuple. The view has the
+     * RecordId of t.
+     *
+     * @param td the TupleDesc of the view
+     * @param t the tuple to project
+     * @param fields the fields of t that become the fields of the view;
+     *   must not be changed afterwards
+     * @return the new Tuple
+     */
+    public static Tuple project(TupleDesc td, Tuple t, int[] fields) {
+    	Tuple tp = new Tuple(td, true);
+    	tp.base = t;
+    	tp.map = fields;
+    	tp.rid = t.getRecordId();
+    	return tp;
+    }
 }
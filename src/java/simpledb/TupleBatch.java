@@ -0,0 +1,240 @@
+package simpledb;
+
+/**
+ * TupleBatch holds up to CAPACITY rows of a TupleDesc in column vectors: an
+ * int[] for every INT_TYPE field and a String[] for every STRING_TYPE field.
+ * Operators that implement {@link BatchIterator} pass batches instead of
+ * single tuples, so per-row work becomes tight loops over arrays.
+ * <p>
+ * A batch may carry a selection vector: after a Filter, only the selected
+ * rows of the batch are part of the result. Consumers iterate over the
+ * active rows with {@link #numRows} and {@link #row}:
+ * <pre>
+ *     for (int k = 0; k &lt; batch.numRows(); k++) {
+ *         int r = batch.row(k);
+ *         ... batch.ints(col)[r] ...
+ *     }
+ * </pre>
+ * A batch returned by nextBatch() belongs to the operator that returned it
+ * and is only valid until the next call to that operator.
+ */
+public class TupleBatch {
+
+    /** Maximum number of rows in a batch. */
+    public static final int CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final Object[] columns;   // int[] or String[], by field type
+    private RecordId[] rids;
+    private int size = 0;             // rows added to the batch
+    private int[] sel;
+    private int numSelected = 0;
+    private boolean selective = false;
+
+    /**
+     * Create an empty batch for tuples of the specified TupleDesc.
+     */
+    public TupleBatch(TupleDesc td) {
+        this.td = td;
+        columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                columns[i] = new int[CAPACITY];
+            else
+                columns[i] = new String[CAPACITY];
+        }
+        rids = new RecordId[CAPACITY];
+        sel = new int[CAPACITY];
+    }
+
+    /** Create a batch that borrows the columns of another batch. */
+    private TupleBatch(TupleDesc td, int numFields) {
+        this.td = td;
+        columns = new Object[numFields];
+    }
+
+    /**
+     * Create a batch for the specified TupleDesc whose columns are the
+     * specified columns of another batch. No data is copied, so the view is
+     * only valid as long as batch is.
+     *
+     * @param td the TupleDesc of the projected fields
+     * @param batch the batch to project
+     * @param fields the fields of batch that become the fields of the view
+     * @param view a view returned by an earlier call to reuse, or null
+     * @return the view
+     */
+    public static TupleBatch project(TupleDesc td, TupleBatch batch, int[] fields, TupleBatch view) {
+        if (view == null)
+            view = new TupleBatch(td, fields.length);
+        for (int i = 0; i < fields.length; i++)
+            view.columns[i] = batch.columns[fields[i]];
+        view.rids = batch.rids;
+        view.sel = batch.sel;
+        view.size = batch.size;
+        view.numSelected = batch.numSelected;
+        view.selective = batch.selective;
+        return view;
+    }
+
+    /**
+     * Read the next batch of a child iterator: natively if it is a
+     * BatchIterator, otherwise by filling a batch with its tuples.
+     *
+     * @param child the child iterator; must be open
+     * @param buffer the batch to fill if child is not a BatchIterator; must
+     *   have the TupleDesc of child
+     * @return the next batch, or null if child has no more tuples
+     */
+    public static TupleBatch next(DbIterator child, TupleBatch buffer)
+        throws DbException, TransactionAbortedException {
+        if (child instanceof BatchIterator)
+            return ((BatchIterator) child).nextBatch();
+        buffer.clear();
+        while (!buffer.isFull() && child.hasNext())
+            buffer.add(child.next());
+        return buffer.size == 0 ? null : buffer;
+    }
+
+    /** @return the TupleDesc of the rows of this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of active rows */
+    public int numRows() {
+        return selective ? numSelected : size;
+    }
+
+    /** @return the index of the kth active row */
+    public int row(int k) {
+        return selective ? sel[k] : k;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    /** Remove all rows and the selection vector. */
+    public void clear() {
+        size = 0;
+        numSelected = 0;
+        selective = false;
+    }
+
+    /** @return the values of an INT_TYPE field, indexed by row */
+    public int[] ints(int field) {
+        return (int[]) columns[field];
+    }
+
+    /** @return the values of a STRING_TYPE field, indexed by row */
+    public String[] strings(int field) {
+        return (String[]) columns[field];
+    }
+
+    /** @return the RecordId of a row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /**
+     * Return the array to write a new selection vector into. A selection
+     * may be narrowed in place: the kth selected row may be written over
+     * entry m &lt;= k once row(k) has been read.
+     *
+     * @see #setSelection
+     */
+    public int[] selection() {
+        return sel;
+    }
+
+    /**
+     * Make the first n entries of {@link #selection} the active rows.
+     */
+    public void setSelection(int n) {
+        numSelected = n;
+        selective = true;
+    }
+
+    /**
+     * Append an empty row. Not allowed once a selection has been set.
+     *
+     * @return the index of the new row
+     */
+    public int addRow() {
+        if (selective)
+            throw new IllegalStateException("addRow(): batch has a selection.");
+        if (size == CAPACITY)
+            throw new IllegalStateException("addRow(): batch is full.");
+        rids[size] = null;
+        return size++;
+    }
+
+    /**
+     * Append a tuple as a new row.
+     *
+     * @return the index of the new row
+     */
+    public int add(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < columns.length; i++)
+            setField(i, row, t.getField(i));
+        rids[row] = t.getRecordId();
+        return row;
+    }
+
+    /**
+     * Append a row of another batch with the same field types.
+     *
+     * @return the index of the new row
+     */
+    public int add(TupleBatch from, int fromRow) {
+        int row = addRow();
+        for (int i = 0; i < columns.length; i++)
+            copyField(i, row, from, i, fromRow);
+        rids[row] = from.rids[fromRow];
+        return row;
+    }
+
+    /** Set the RecordId of a row. */
+    public void setRecordId(int row, RecordId rid) {
+        rids[row] = rid;
+    }
+
+    /** Set a field of a row. */
+    public void setField(int field, int row, Field f) {
+        if (columns[field] instanceof int[])
+            ints(field)[row] = ((IntField) f).getValue();
+        else
+            strings(field)[row] = ((StringField) f).getValue();
+    }
+
+    /** @return a field of a row as a Field object */
+    public Field getField(int field, int row) {
+        if (columns[field] instanceof int[])
+            return new IntField(ints(field)[row]);
+        return new StringField(strings(field)[row], Type.STRING_LEN);
+    }
+
+    /**
+     * Copy a field of a row of another batch into a field of a row of
+     * this batch. The fields must have the same type.
+     */
+    public void copyField(int field, int row, TupleBatch from, int fromField, int fromRow) {
+        if (columns[field] instanceof int[])
+            ints(field)[row] = from.ints(fromField)[fromRow];
+        else
+            strings(field)[row] = from.strings(fromField)[fromRow];
+    }
+
+    /** @return a row as a new Tuple */
+    public Tuple toTuple(int row) {
+        Field[] fields = new Field[columns.length];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = getField(i, row);
+        Tuple t = new Tuple(td, fields);
+        t.setRecordId(rids[row]);
+        return t;
+    }
+}
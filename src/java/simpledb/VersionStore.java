@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * VersionStore keeps the older committed images of pages so that read-only
+ * transactions can read a consistent snapshot of the database without
+ * taking any locks.
+ * <p>
+ * Every commit that changes pages is stamped with a commit timestamp drawn
+ * from a logical clock. A read-only transaction takes the current value of
+ * the clock as its snapshot timestamp when it starts, and sees exactly the
+ * changes committed at or before that timestamp. When a writer commits, the
+ * image its pages had before the commit (the HeapPage before image) is kept
+ * here for as long as an active snapshot may still need it.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** A committed image of a page, visible to snapshots in [beginTs, endTs). */
+    private static class Version {
+        final Page page;
+        final long beginTs;
+        final long endTs;
+
+        Version(Page page, long beginTs, long endTs) {
+            this.page = page;
+            this.beginTs = beginTs;
+            this.endTs = endTs;
+        }
+    }
+
+    private final AtomicLong clock = new AtomicLong(0);
+    /* older images of each page, newest first */
+    private final HashMap<PageId, LinkedList<Version>> versions;
+    /* commit timestamp of the latest committed image of each page */
+    private final HashMap<PageId, Long> lastCommit;
+    /* snapshot timestamps of the active read-only transactions */
+    private final HashMap<TransactionId, Long> snapshots;
+    private int numVersions = 0;
+
+    public VersionStore() {
+        versions = new HashMap<PageId, LinkedList<Version>>();
+        lastCommit = new HashMap<PageId, Long>();
+        snapshots = new HashMap<TransactionId, Long>();
+    }
+
+    /**
+     * Start a snapshot for a read-only transaction.
+     *
+     * @param tid the read-only transaction
+     * @return the snapshot timestamp of the transaction
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        long ts = clock.get();
+        snapshots.put(tid, ts);
+        return ts;
+    }
+
+    /**
+     * End the snapshot of a read-only transaction, and drop the versions
+     * that no remaining snapshot needs. Has no effect if tid has no snapshot.
+     *
+     * @param tid the read-only transaction
+     */
+    public synchronized void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            gc();
+    }
+
+    /**
+     * @return true if the specified transaction reads from a snapshot
+     */
+    public synchronized boolean isSnapshotReader(TransactionId tid) {
+        return tid != null && snapshots.containsKey(tid);
+    }
+
+    /**
+     * Return the image of a page that the snapshot of a read-only
+     * transaction should see.
+     *
+     * @param tid the read-only transaction
+     * @param current the page as it is cached in the buffer pool
+     * @param uncommitted true if current holds changes of a transaction
+     *   that has not committed yet
+     * @return the version of the page visible to the snapshot of tid
+     */
+    public synchronized Page readVersion(TransactionId tid, Page current, boolean uncommitted) {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null)
+            throw new IllegalArgumentException("readVersion(): " + tid + " has no snapshot.");
+        PageId pid = current.getId();
+        Long committed = lastCommit.get(pid);
+        if (committed == null || committed <= snapshot)
+            return uncommitted ? current.getBeforeImage() : current;
+
+        LinkedList<Version> chain = versions.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.beginTs <= snapshot && snapshot < v.endTs)
+                    return v.page;
+            }
+        }
+        // should never happen -- versions are kept while a snapshot needs them
+        throw new IllegalStateException("readVersion(): no version of " + pid
+                + " for snapshot " + snapshot);
+    }
+
+    /**
+     * Record the commit of a transaction that changed the specified pages.
+     * The images the pages had before the commit, and the commit timestamp
+     * of the pages, are kept only if an active snapshot may need them.
+     *
+     * @param beforeImages the committed images of the changed pages as of
+     *   just before this commit
+     * @return the commit timestamp
+     */
+    public synchronized long commit(ArrayList<Page> beforeImages) {
+        long ts = clock.incrementAndGet();
+        if (snapshots.isEmpty()) {
+            // every future snapshot sees the latest images, so no commit
+            // timestamp needs to be kept (gc dropped the older ones)
+            lastCommit.clear();
+            return ts;
+        }
+        for (Page before : beforeImages) {
+            PageId pid = before.getId();
+            Long committed = lastCommit.put(pid, ts);
+            LinkedList<Version> chain = versions.get(pid);
+            if (chain == null) {
+                chain = new LinkedList<Version>();
+                versions.put(pid, chain);
+            }
+            chain.addFirst(new Version(before, committed == null ? 0 : committed, ts));
+            numVersions++;
+        }
+        return ts;
+    }
+
+    /**
+     * @return the number of old page versions currently kept
+     */
+    public synchronized int numVersions() {
+        return numVersions;
+    }
+
+    /**
+     * Drop the versions that no active snapshot can see. A version that
+     * stopped being current at endTs is invisible to every snapshot taken
+     * at or after endTs. Commit timestamps older than every snapshot are
+     * dropped too.
+     */
+    private void gc() {
+        long oldest = Long.MAX_VALUE;
+        for (long ts : snapshots.values())
+            oldest = Math.min(oldest, ts);
+        Iterator<LinkedList<Version>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            LinkedList<Version> chain = it.next();
+            // chains are ordered newest first, so old versions are at the end
+            while (!chain.isEmpty() && chain.getLast().endTs <= oldest) {
+                chain.removeLast();
+                numVersions--;
+            }
+            if (chain.isEmpty())
+                it.remove();
+        }
+        // every snapshot sees the latest image of pages committed before it
+        Iterator<Long> commits = lastCommit.values().iterator();
+        while (commits.hasNext()) {
+            if (commits.next() <= oldest)
+                commits.remove();
+        }
+    }
+}